@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Overhead of {@link CheckedExceptions#runUnchecked(CheckedExceptions.ThrowingRunnable)}
+ * and {@link CheckedExceptions#callUnchecked(java.util.concurrent.Callable)}
+ * on the non-throwing path, compared with calling the same code directly.
+ * The {@code uncheck*} benchmarks do the same for the wrappers returned by
+ * {@code uncheck}, both prebuilt and created per call.
+ *
+ * <p>All should match their direct equivalents, with no allocation
+ * ({@code -prof gc}). To confirm that the wrappers are inlined, add
+ * {@code -jvmArgsAppend "-XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining"}
+ * and look for {@code CheckedExceptions::runUnchecked (inline)}.</p>
+ *
+ * <p>The {@code *Throwing} benchmarks measure the cost of wrapping a checked
+ * exception with {@code runUnchecked} vs.
+ * {@link CheckedExceptions#runStackless(CheckedExceptions.ThrowingRunnable)}.
+ * The same cause is thrown each time, so only the wrapping is measured.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckedExceptionsBenchmark {
+
+  private static final IOException FAILURE = new IOException("Expected");
+
+  private int value = 42;
+  private Runnable uncheckedRunnable;
+  private Supplier<Integer> uncheckedSupplier;
+  private Consumer<Blackhole> uncheckedConsumer;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    uncheckedRunnable = CheckedExceptions.uncheck(() -> work(blackhole));
+    uncheckedSupplier = CheckedExceptions.uncheck(this::compute);
+    uncheckedConsumer = CheckedExceptions.uncheck(this::work);
+  }
+
+  @Benchmark
+  public void runDirect(Blackhole blackhole) throws Exception {
+    work(blackhole);
+  }
+
+  @Benchmark
+  public void runUnchecked(Blackhole blackhole) {
+    CheckedExceptions.runUnchecked(() -> work(blackhole));
+  }
+
+  @Benchmark
+  public int callDirect() throws Exception {
+    return compute();
+  }
+
+  @Benchmark
+  public int callUnchecked() {
+    return CheckedExceptions.callUnchecked(this::compute);
+  }
+
+  @Benchmark
+  public void uncheckRunnable() {
+    uncheckedRunnable.run();
+  }
+
+  @Benchmark
+  public int uncheckSupplier() {
+    return uncheckedSupplier.get();
+  }
+
+  @Benchmark
+  public void uncheckConsumer(Blackhole blackhole) {
+    uncheckedConsumer.accept(blackhole);
+  }
+
+  @Benchmark
+  public void uncheckAndRun(Blackhole blackhole) {
+    CheckedExceptions.uncheck(() -> work(blackhole)).run();
+  }
+
+  @Benchmark
+  public Object runUncheckedThrowing() {
+    try {
+      CheckedExceptions.runUnchecked(this::fail);
+      return null;
+    } catch (RuntimeException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object runStacklessThrowing() {
+    try {
+      CheckedExceptions.runStackless(this::fail);
+      return null;
+    } catch (RuntimeException e) {
+      return e;
+    }
+  }
+
+  private void fail() throws IOException {
+    throw FAILURE;
+  }
+
+  private void work(Blackhole blackhole) throws Exception {
+    blackhole.consume(value);
+  }
+
+  private int compute() throws Exception {
+    return value * 31;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Overhead of {@link LogExceptions#wrap(Runnable)} on the non-exception
+ * path. {@code wrapAndRun} includes creating the wrapper, as happens when
+ * wrapping each task submitted to an executor; {@code runWrapped} reuses a
+ * single wrapper.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogExceptionsBenchmark {
+
+  private Runnable task;
+  private Runnable wrapped;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    task = () -> blackhole.consume(this);
+    wrapped = LogExceptions.wrap(task);
+  }
+
+  @Benchmark
+  public void runDirect() {
+    task.run();
+  }
+
+  @Benchmark
+  public void runWrapped() {
+    wrapped.run();
+  }
+
+  @Benchmark
+  public void wrapAndRun() {
+    LogExceptions.wrap(task).run();
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-item cost of {@link Batcher#accept(Object)}, including the amortised
+ * cost of flushing, at a range of batch sizes. A batch size of 1 flushes on
+ * every item, so shows the worst case flush overhead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatcherBenchmark {
+
+  private static final Integer ITEM = 42;
+
+  @Param({ "1", "10", "100", "1000", "10000" })
+  public int batchSize;
+
+  private Batcher<Integer> batcher;
+
+  @Setup(Level.Iteration)
+  public void setup(Blackhole blackhole) {
+    batcher = Batcher.batch(batchSize, batch -> blackhole.consume(batch));
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    batcher.close();
+  }
+
+  @Benchmark
+  public void accept() {
+    batcher.accept(ITEM);
+  }
+
+  /**
+   * Baseline: the cost of passing an item straight to a {@link Blackhole}.
+   */
+  @Benchmark
+  public void baseline(Blackhole blackhole) {
+    blackhole.consume(ITEM);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.grahamcrockford.badgerutils.function.RingBufferBatcher.WaitStrategy;
+
+/**
+ * Throughput of a single {@link RingBufferBatcher} shared between all
+ * benchmark threads, for comparison with {@link ConcurrentBatcherBenchmark}.
+ * Vary the thread count with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBufferBatcherBenchmark {
+
+  private static final Integer ITEM = 42;
+
+  @Param({ "100", "1000" })
+  public int batchSize;
+
+  @Param({ "BUSY_SPIN", "YIELD", "PARK" })
+  public WaitStrategy waitStrategy;
+
+  private RingBufferBatcher<Integer> batcher;
+
+  @Setup(Level.Iteration)
+  public void setup(Blackhole blackhole) {
+    batcher = RingBufferBatcher.batch(8192, batchSize, waitStrategy, batch -> blackhole.consume(batch));
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    batcher.close();
+  }
+
+  @Benchmark
+  public void accept() {
+    batcher.accept(ITEM);
+  }
+}
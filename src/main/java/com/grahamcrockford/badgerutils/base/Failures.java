@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grahamcrockford.badgerutils.base;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Collects failures from background work which should not stop the rest of
+ * that work, so that they can be reported together once it has finished.
+ * {@link #rethrow()} throws the first failure collected, with the rest
+ * attached as suppressed exceptions.
+ *
+ * <p>Thread safe: failures may be added from any number of threads.</p>
+ */
+public final class Failures {
+
+  private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Records a failure.
+   *
+   * @param t The failure.
+   */
+  public void add(Throwable t) {
+    failures.add(t);
+  }
+
+  /**
+   * If any failures have been recorded since the last call, rethrows the
+   * first, with the others attached as suppressed exceptions. Unchecked
+   * exceptions and errors are rethrown as they are; checked exceptions are
+   * wrapped in {@link RuntimeException}.
+   */
+  public void rethrow() {
+    Throwable first = failures.poll();
+    if (first == null) {
+      return;
+    }
+    for (Throwable next = failures.poll(); next != null; next = failures.poll()) {
+      if (next != first) {
+        first.addSuppressed(next);
+      }
+    }
+    Throwables.throwIfUnchecked(first);
+    throw new RuntimeException(first);
+  }
+}
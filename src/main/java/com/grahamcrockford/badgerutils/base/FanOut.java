@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.grahamcrockford.badgerutils.base.CheckedExceptions.ThrowingRunnable;
+
+/**
+ * Runs a fan-out of tasks concurrently and waits for them all to finish, in
+ * the style of structured concurrency: when this returns or throws, none of
+ * the tasks are still running.
+ *
+ * <pre><code>List&lt;Response&gt; responses = FanOut.callAll(
+ *     requests.stream().map(r -&gt; (Callable&lt;Response&gt;) () -&gt; client.send(r)).collect(toList()));</code></pre>
+ *
+ * <p>Each task is run using {@link LogExceptions#in(Runnable)} and
+ * {@link CheckedExceptions}, so failures are logged, interrupts are logged
+ * at INFO, and checked exceptions are wrapped in {@link RuntimeException}s.
+ * The first task to fail cancels the rest: those not yet started are
+ * skipped and those running are interrupted. Once everything has stopped,
+ * the independent failures are rethrown using {@link Failures}. Failures
+ * caused by the cancellation itself are not included.</p>
+ *
+ * <p>The overloads without an {@link Executor} create one for the call.
+ * When running on Java 21 or later, this starts a virtual thread per task,
+ * so tens of thousands of concurrent blocking I/O tasks are cheap. On
+ * earlier versions, it falls back to a cached pool of platform threads,
+ * which is only suitable for modest fan-outs; for anything larger, pass a
+ * bounded {@link Executor}.</p>
+ */
+public final class FanOut {
+
+  private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = virtualThreadExecutorFactory();
+  private static final ThreadFactory PLATFORM_THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setDaemon(true).setNameFormat("badgerutils-fan-out-%d").build();
+
+  private FanOut() {
+    // Not instantiable
+  }
+
+  /**
+   * Runs all the tasks concurrently on a new executor, as described above,
+   * and waits for them to finish.
+   *
+   * @param tasks The tasks.
+   * @throws RuntimeException The first failure, if any.
+   */
+  public static void runAll(Collection<? extends ThrowingRunnable> tasks) {
+    callAll(asCallables(tasks));
+  }
+
+  /**
+   * Runs all the tasks concurrently on the supplied executor and waits for
+   * them to finish.
+   *
+   * @param executor Runs the tasks.
+   * @param tasks The tasks.
+   * @throws RuntimeException The first failure, if any.
+   */
+  public static void runAll(Executor executor, Collection<? extends ThrowingRunnable> tasks) {
+    callAll(executor, asCallables(tasks));
+  }
+
+  /**
+   * Calls all the tasks concurrently on a new executor, as described above,
+   * and waits for them to finish.
+   *
+   * @param tasks The tasks.
+   * @return The results, in the same order as the tasks.
+   * @throws RuntimeException The first failure, if any.
+   */
+  public static <T> List<T> callAll(Collection<? extends Callable<? extends T>> tasks) {
+    ExecutorService executor = newExecutor();
+    try {
+      return callAll(executor, tasks);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Calls all the tasks concurrently on the supplied executor and waits for
+   * them to finish.
+   *
+   * @param executor Runs the tasks.
+   * @param tasks The tasks.
+   * @return The results, in the same order as the tasks.
+   * @throws RuntimeException The first failure, if any.
+   */
+  public static <T> List<T> callAll(Executor executor, Collection<? extends Callable<? extends T>> tasks) {
+    return new Scope<T>(tasks.size()).run(executor, tasks);
+  }
+
+  private static List<Callable<Void>> asCallables(Collection<? extends ThrowingRunnable> tasks) {
+    List<Callable<Void>> result = new ArrayList<>(tasks.size());
+    for (ThrowingRunnable task : tasks) {
+      result.add(() -> {
+        task.run();
+        return null;
+      });
+    }
+    return result;
+  }
+
+  /**
+   * @return A virtual thread per task executor if available, otherwise a
+   *         cached thread pool.
+   */
+  static ExecutorService newExecutor() {
+    if (NEW_VIRTUAL_THREAD_EXECUTOR != null) {
+      try {
+        return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return Executors.newCachedThreadPool(PLATFORM_THREAD_FACTORY);
+  }
+
+  private static Method virtualThreadExecutorFactory() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * The state of a single call to {@link FanOut#callAll(Executor, Collection)}.
+   */
+  private static final class Scope<T> {
+
+    private final Object[] results;
+    private final Task[] tasks;
+    private final CountDownLatch finished;
+    private final Failures failures = new Failures();
+    private volatile boolean cancelled;
+
+    Scope(int size) {
+      this.results = new Object[size];
+      this.tasks = new Task[size];
+      this.finished = new CountDownLatch(size);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<T> run(Executor executor, Collection<? extends Callable<? extends T>> callables) {
+      int submitted = 0;
+      try {
+        for (Callable<? extends T> callable : callables) {
+          Task task = new Task(this, submitted, callable);
+          tasks[submitted] = task;
+          executor.execute(task);
+          submitted++;
+        }
+      } catch (RejectedExecutionException e) {
+        failures.add(e);
+        cancel();
+        for (int i = submitted; i < results.length; i++) {
+          finished.countDown();
+        }
+      }
+      awaitFinished();
+      failures.rethrow();
+      return (List<T>) Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    /**
+     * Waits for all the tasks to finish. If interrupted, cancels them, but
+     * still waits, then rethrows the interrupt.
+     */
+    private void awaitFinished() {
+      try {
+        finished.await();
+      } catch (InterruptedException e) {
+        cancel();
+        while (finished.getCount() != 0) {
+          try {
+            finished.await();
+          } catch (InterruptedException e2) {
+            // Keep waiting
+          }
+        }
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void cancel() {
+      cancelled = true;
+      for (Task task : tasks) {
+        if (task != null) {
+          task.interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * A single task in a {@link Scope}.
+   */
+  private static final class Task implements Runnable {
+
+    private final Scope<?> scope;
+    private final int index;
+    private final Callable<?> callable;
+
+    // Guarded by this
+    private Thread thread;
+    private boolean done;
+    private boolean interrupted;
+
+    Task(Scope<?> scope, int index, Callable<?> callable) {
+      this.scope = scope;
+      this.index = index;
+      this.callable = callable;
+    }
+
+    @Override
+    public void run() {
+      try {
+        synchronized (this) {
+          if (scope.cancelled || done) {
+            done = true;
+            return;
+          }
+          thread = Thread.currentThread();
+        }
+        try {
+          LogExceptions.in(() -> scope.results[index] = CheckedExceptions.callUnchecked(callable));
+        } catch (Throwable t) {
+          if (!isInterrupted()) {
+            scope.failures.add(t);
+            scope.cancel();
+          }
+        } finally {
+          synchronized (this) {
+            done = true;
+            thread = null;
+            if (interrupted) {
+              // Don't leak our interrupt into the executor's thread
+              Thread.interrupted();
+            }
+          }
+        }
+      } finally {
+        scope.finished.countDown();
+      }
+    }
+
+    synchronized void interrupt() {
+      if (thread != null && !done && thread != Thread.currentThread()) {
+        interrupted = true;
+        thread.interrupt();
+      }
+    }
+
+    private synchronized boolean isInterrupted() {
+      return interrupted;
+    }
+  }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * {@link ExecutorService} decorator which applies the same exception
+ * handling as {@link LogExceptions#wrap(Runnable)} to every task, and records
+ * how long tasks wait in the queue and take to run. Use it to spot thread
+ * pool saturation (growing queue wait) and long-tail tasks without attaching
+ * a profiler.
+ *
+ * <pre><code>InstrumentedExecutorService executor = InstrumentedExecutorService.instrument(
+ *     Executors.newFixedThreadPool(8), 1, TimeUnit.SECONDS, 100);
+ *...
+ *log.info("Queue wait p99 {}us", executor.queueWaitNanos().percentile(99) / 1000);</code></pre>
+ *
+ * <p>{@link Runnable}s are run using {@link LogExceptions#in(Runnable)}, so
+ * any exceptions they throw are logged, including those submitted with
+ * {@code submit}, whose exceptions would otherwise only appear if someone
+ * calls {@link Future#get()}. Exceptions thrown by {@link Callable}s are
+ * counted, but left to the caller to handle through the {@link Future}.</p>
+ *
+ * <p>Tasks which run for longer than the slow task threshold are sampled:
+ * the most recent are kept, with their timings, and may be retrieved using
+ * {@link #slowTasks()}.</p>
+ */
+public final class InstrumentedExecutorService implements ExecutorService {
+
+  private static final int DEFAULT_SLOW_TASK_SAMPLES = 100;
+
+  private final ExecutorService delegate;
+  private final long slowTaskNanos;
+  private final int slowTaskSamples;
+
+  private final Histogram queueWaitNanos = new Histogram();
+  private final Histogram runNanos = new Histogram();
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder started = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder interrupted = new LongAdder();
+  private final Queue<SlowTask> slowTasks = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger slowTaskCount = new AtomicInteger();
+
+  /**
+   * Decorates the specified {@link ExecutorService}, without sampling slow
+   * tasks.
+   *
+   * @param delegate The executor which actually runs the tasks.
+   * @return The decorated executor.
+   */
+  public static InstrumentedExecutorService instrument(ExecutorService delegate) {
+    return new InstrumentedExecutorService(delegate, Long.MAX_VALUE, DEFAULT_SLOW_TASK_SAMPLES);
+  }
+
+  /**
+   * Decorates the specified {@link ExecutorService}, keeping the most recent
+   * {@code slowTaskSamples} tasks which took longer than
+   * {@code slowTaskThreshold} to run.
+   *
+   * @param delegate The executor which actually runs the tasks.
+   * @param slowTaskThreshold The run time above which a task is considered
+   *          slow.
+   * @param unit The units of {@code slowTaskThreshold}.
+   * @param slowTaskSamples The number of slow tasks to keep.
+   * @return The decorated executor.
+   */
+  public static InstrumentedExecutorService instrument(ExecutorService delegate, long slowTaskThreshold, TimeUnit unit,
+      int slowTaskSamples) {
+    return new InstrumentedExecutorService(delegate, unit.toNanos(slowTaskThreshold), slowTaskSamples);
+  }
+
+  private InstrumentedExecutorService(ExecutorService delegate, long slowTaskNanos, int slowTaskSamples) {
+    Preconditions.checkArgument(slowTaskNanos >= 0, "slowTaskThreshold must not be negative");
+    Preconditions.checkArgument(slowTaskSamples > 0, "slowTaskSamples must be positive");
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.slowTaskNanos = slowTaskNanos;
+    this.slowTaskSamples = slowTaskSamples;
+  }
+
+  /**
+   * @return The time tasks spent waiting between being submitted and
+   *         starting to run, in nanoseconds.
+   */
+  public Histogram queueWaitNanos() {
+    return queueWaitNanos;
+  }
+
+  /**
+   * @return The time tasks took to run, in nanoseconds.
+   */
+  public Histogram runNanos() {
+    return runNanos;
+  }
+
+  /**
+   * @return The number of tasks submitted but not yet started. Tasks which
+   *         are rejected, cancelled before starting or returned by
+   *         {@link #shutdownNow()} are not counted.
+   */
+  public long queued() {
+    return submitted.sum() - started.sum();
+  }
+
+  /**
+   * @return The number of tasks currently running.
+   */
+  public long running() {
+    return started.sum() - completed.sum();
+  }
+
+  /**
+   * @return The number of tasks which have finished running, successfully
+   *         or not.
+   */
+  public long completed() {
+    return completed.sum();
+  }
+
+  /**
+   * @return The number of tasks which threw an exception.
+   */
+  public long failed() {
+    return failed.sum();
+  }
+
+  /**
+   * @return The number of tasks which were interrupted, either throwing
+   *         {@link InterruptedException} or finishing with the interrupt flag
+   *         set.
+   */
+  public long interrupted() {
+    return interrupted.sum();
+  }
+
+  /**
+   * @return The most recent tasks which took longer than the slow task
+   *         threshold, oldest first.
+   */
+  public List<SlowTask> slowTasks() {
+    return ImmutableList.copyOf(slowTasks);
+  }
+
+  private void finished(Object task, long submittedAt, long startedAt, boolean threw, boolean wasInterrupted) {
+    long elapsed = System.nanoTime() - startedAt;
+    runNanos.record(elapsed);
+    completed.increment();
+    if (threw) {
+      failed.increment();
+    }
+    if (wasInterrupted || Thread.currentThread().isInterrupted()) {
+      interrupted.increment();
+    }
+    if (elapsed >= slowTaskNanos) {
+      slowTasks.add(new SlowTask(task.toString(), Thread.currentThread().getName(), startedAt - submittedAt, elapsed));
+      if (slowTaskCount.incrementAndGet() > slowTaskSamples) {
+        slowTasks.poll();
+        slowTaskCount.decrementAndGet();
+      }
+    }
+  }
+
+  private <T> List<InstrumentedCallable<T>> wrap(Collection<? extends Callable<T>> tasks) {
+    List<InstrumentedCallable<T>> result = new ArrayList<>(tasks.size());
+    for (Callable<T> task : tasks) {
+      result.add(new InstrumentedCallable<>(task));
+    }
+    return result;
+  }
+
+  /**
+   * Hands the task to the delegate, withdrawing it from the queued count if
+   * rejected.
+   */
+  private void handOff(InstrumentedTask task, Runnable runnable) {
+    try {
+      delegate.execute(runnable);
+    } catch (RuntimeException e) {
+      task.withdraw();
+      throw e;
+    }
+  }
+
+  /**
+   * Withdraws any of the tasks passed to {@code invokeAll} or
+   * {@code invokeAny} which never started, since once these return, any
+   * remaining tasks have been cancelled.
+   */
+  private static void withdrawAll(List<? extends InstrumentedTask> tasks) {
+    for (InstrumentedTask task : tasks) {
+      task.withdraw();
+    }
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    InstrumentedRunnable task = new InstrumentedRunnable(command);
+    handOff(task, task);
+  }
+
+  @Override
+  public Future<?> submit(Runnable task) {
+    return submit(task, null);
+  }
+
+  @Override
+  public <T> Future<T> submit(Runnable task, T result) {
+    InstrumentedRunnable instrumented = new InstrumentedRunnable(task);
+    InstrumentedFuture<T> future = new InstrumentedFuture<>(instrumented, result);
+    handOff(instrumented, future);
+    return future;
+  }
+
+  @Override
+  public <T> Future<T> submit(Callable<T> task) {
+    InstrumentedCallable<T> instrumented = new InstrumentedCallable<>(task);
+    InstrumentedFuture<T> future = new InstrumentedFuture<>(instrumented);
+    handOff(instrumented, future);
+    return future;
+  }
+
+  @Override
+  public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+    List<InstrumentedCallable<T>> wrapped = wrap(tasks);
+    try {
+      return delegate.invokeAll(wrapped);
+    } finally {
+      withdrawAll(wrapped);
+    }
+  }
+
+  @Override
+  public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    List<InstrumentedCallable<T>> wrapped = wrap(tasks);
+    try {
+      return delegate.invokeAll(wrapped, timeout, unit);
+    } finally {
+      withdrawAll(wrapped);
+    }
+  }
+
+  @Override
+  public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+    List<InstrumentedCallable<T>> wrapped = wrap(tasks);
+    try {
+      return delegate.invokeAny(wrapped);
+    } finally {
+      withdrawAll(wrapped);
+    }
+  }
+
+  @Override
+  public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    List<InstrumentedCallable<T>> wrapped = wrap(tasks);
+    try {
+      return delegate.invokeAny(wrapped, timeout, unit);
+    } finally {
+      withdrawAll(wrapped);
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+  /**
+   * Delegates to the underlying executor, returning the tasks which never
+   * started. As with {@link java.util.concurrent.ThreadPoolExecutor}, tasks
+   * passed to {@link #execute(Runnable)} are returned as they were passed,
+   * and tasks passed to {@code submit} are returned as the {@link Future}
+   * which {@code submit} returned. Tasks passed to {@code invokeAll} or
+   * {@code invokeAny} are returned in whatever form the underlying executor
+   * uses.
+   *
+   * @see java.util.concurrent.ExecutorService#shutdownNow()
+   */
+  @Override
+  public List<Runnable> shutdownNow() {
+    List<Runnable> pending = delegate.shutdownNow();
+    List<Runnable> result = new ArrayList<>(pending.size());
+    for (Runnable runnable : pending) {
+      if (runnable instanceof InstrumentedRunnable) {
+        InstrumentedRunnable instrumented = (InstrumentedRunnable) runnable;
+        instrumented.withdraw();
+        result.add(instrumented.task);
+      } else {
+        if (runnable instanceof InstrumentedFuture) {
+          ((InstrumentedFuture<?>) runnable).task.withdraw();
+        }
+        result.add(runnable);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return delegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return delegate.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * Common state for wrapped tasks. A task is counted as submitted on
+   * creation, and is then either started or withdrawn (if it turns out it
+   * will never run), whichever happens first.
+   */
+  private abstract class InstrumentedTask {
+
+    final long submittedAt = System.nanoTime();
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    InstrumentedTask() {
+      submitted.increment();
+    }
+
+    long start() {
+      if (!claimed.compareAndSet(false, true)) {
+        // Withdrawn, but started anyway (e.g. cancelled just as it started)
+        submitted.increment();
+      }
+      long now = System.nanoTime();
+      started.increment();
+      queueWaitNanos.record(now - submittedAt);
+      return now;
+    }
+
+    void withdraw() {
+      if (claimed.compareAndSet(false, true)) {
+        submitted.decrement();
+      }
+    }
+  }
+
+  private final class InstrumentedRunnable extends InstrumentedTask implements Runnable {
+
+    private final Runnable task;
+
+    InstrumentedRunnable(Runnable task) {
+      this.task = Preconditions.checkNotNull(task);
+    }
+
+    @Override
+    public void run() {
+      long startedAt = start();
+      boolean threw = true;
+      try {
+        LogExceptions.in(task);
+        threw = false;
+      } finally {
+        finished(task, submittedAt, startedAt, threw, false);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  private final class InstrumentedCallable<T> extends InstrumentedTask implements Callable<T> {
+
+    private final Callable<T> task;
+
+    InstrumentedCallable(Callable<T> task) {
+      this.task = Preconditions.checkNotNull(task);
+    }
+
+    @Override
+    public T call() throws Exception {
+      long startedAt = start();
+      boolean threw = true;
+      boolean wasInterrupted = false;
+      try {
+        T result = task.call();
+        threw = false;
+        return result;
+      } catch (InterruptedException e) {
+        wasInterrupted = true;
+        throw e;
+      } finally {
+        finished(task, submittedAt, startedAt, threw, wasInterrupted);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  /**
+   * The {@link Future} returned by {@code submit}, which withdraws the task
+   * if cancelled before it starts.
+   */
+  private static final class InstrumentedFuture<T> extends FutureTask<T> {
+
+    private final InstrumentedTask task;
+
+    InstrumentedFuture(InstrumentedCallable<T> callable) {
+      super(callable);
+      this.task = callable;
+    }
+
+    InstrumentedFuture(InstrumentedRunnable runnable, T result) {
+      super(runnable, result);
+      this.task = runnable;
+    }
+
+    @Override
+    protected void done() {
+      if (isCancelled()) {
+        task.withdraw();
+      }
+    }
+  }
+
+  /**
+   * A task which took longer than the slow task threshold.
+   */
+  public static final class SlowTask {
+
+    private final String task;
+    private final String thread;
+    private final long queueWaitNanos;
+    private final long runNanos;
+
+    SlowTask(String task, String thread, long queueWaitNanos, long runNanos) {
+      this.task = task;
+      this.thread = thread;
+      this.queueWaitNanos = queueWaitNanos;
+      this.runNanos = runNanos;
+    }
+
+    /**
+     * @return The {@link Object#toString()} of the task.
+     */
+    public String task() {
+      return task;
+    }
+
+    /**
+     * @return The name of the thread which ran the task.
+     */
+    public String thread() {
+      return thread;
+    }
+
+    /**
+     * @return How long the task waited to start, in nanoseconds.
+     */
+    public long queueWaitNanos() {
+      return queueWaitNanos;
+    }
+
+    /**
+     * @return How long the task took to run, in nanoseconds.
+     */
+    public long runNanos() {
+      return runNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s on %s: waited %dus, ran %dus", task, thread,
+          TimeUnit.NANOSECONDS.toMicros(queueWaitNanos), TimeUnit.NANOSECONDS.toMicros(runNanos));
+    }
+  }
+}
@@ -16,11 +16,24 @@
 
 package com.grahamcrockford.badgerutils.base;
 
-import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.grahamcrockford.badgerutils.base.CheckedExceptions.ThrowingRunnable;
 
 /**
@@ -31,11 +44,15 @@ import com.grahamcrockford.badgerutils.base.CheckedExceptions.ThrowingRunnable;
  * <p>Currently tied to Log4J, but this stuff is so simply it's easy to
  * re-implement for your logger of choice.</p>
  * 
+ * <p>Where the same failure may repeat thousands of times a second, use
+ * {@link #throttle(long, TimeUnit)} to avoid flooding the logs.</p>
+ * 
  * @author grahamc (Graham Crockford)
  */
 public final class LogExceptions {
 
   private static final Logger log = LoggerFactory.getLogger(LogExceptions.class);
+  private static final int DEFAULT_MAX_FINGERPRINTS = 1024;
 
   /**
    * Runs the specified code. If any exceptions are caught, they are logged as
@@ -61,25 +78,33 @@ public final class LogExceptions {
     try {
       runnable.run();
     } catch (RuntimeException e) {
-      if (Thread.interrupted()) {
-        
-        Throwable t = e;
-        while (t != null && !InterruptedException.class.isInstance(t)) {
-          t = e.getCause();
-        }
-        
-        if (t == null || t.getStackTrace().length == 0) {
-          log.error("Thread interrupted but later exception thrown", e);
-        } else {
-          logInterrupt((InterruptedException) t);
-        }
-        
-        Thread.currentThread().interrupt();
-        
+      logCaught(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Logs an exception caught by {@link #in(Runnable)}. Kept out of line so
+   * that {@link #in(Runnable)} stays small enough for the JIT to inline.
+   */
+  private static void logCaught(RuntimeException e) {
+    if (Thread.interrupted()) {
+      
+      Throwable t = e;
+      while (t != null && !InterruptedException.class.isInstance(t)) {
+        t = e.getCause();
+      }
+      
+      if (t == null || t.getStackTrace().length == 0) {
+        log.error("Thread interrupted but later exception thrown", e);
       } else {
-        log.error("Caught exception", e);
+        logInterrupt((InterruptedException) t);
       }
-      throw e;
+      
+      Thread.currentThread().interrupt();
+      
+    } else {
+      log.error("Caught exception", e);
     }
   }
   
@@ -113,11 +138,14 @@ public final class LogExceptions {
    *  // Do your thing.
    *}));</code></pre>
    * 
+   * <p>The returned lambda is not {@link java.io.Serializable}, which keeps it
+   * cheap to create and simple for the JIT to inline.</p>
+   * 
    * @param delegate
    * @return
    */
   public static final Runnable wrap(Runnable delegate) {
-    return (Runnable & Serializable) () -> in(delegate);
+    return () -> in(delegate);
   }
   
   /**
@@ -132,9 +160,226 @@ public final class LogExceptions {
    * @return
    */
   public static final InterruptibleRunnable log(InterruptibleRunnable delegate) {
-    return (InterruptibleRunnable & Serializable) () -> onInterrupt(delegate);
+    return () -> onInterrupt(delegate);
   }
   
+  /**
+   * Creates a {@link Throttle}, which behaves like {@link #in(Runnable)} and
+   * {@link #wrap(Runnable)} but deduplicates repeated exceptions, so that a
+   * failing downstream dependency doesn't flood the logs. Usage:
+   *
+   * <pre><code>private static final LogExceptions.Throttle THROTTLE = LogExceptions.throttle(1, TimeUnit.MINUTES);
+   *
+   *executor.execute(THROTTLE.wrap(() -> {
+   *  // Do your thing.
+   *}));</code></pre>
+   *
+   * @param interval The minimum interval between logging identical
+   *          exceptions in full.
+   * @param unit The units of {@code interval}.
+   * @return The throttle.
+   */
+  public static final Throttle throttle(long interval, TimeUnit unit) {
+    return new Throttle(unit.toNanos(interval), DEFAULT_MAX_FINGERPRINTS, Ticker.systemTicker());
+  }
+
+  /**
+   * Rate limited equivalent of {@link LogExceptions#in(Runnable)}. Create
+   * using {@link LogExceptions#throttle(long, TimeUnit)}.
+   *
+   * <p>Exceptions are fingerprinted by their type, and the type and top few
+   * frames of their root cause, so that wrappers without a stack trace of
+   * their own (such as {@link UncheckedException}) are still told apart. The
+   * first occurrence of each is logged in full. Further identical exceptions
+   * within the interval are counted but not logged. The next occurrence after
+   * the interval has passed is logged in full again, with the number
+   * suppressed since. If there is no next occurrence, a summary line with the
+   * number suppressed is logged once the interval has passed instead, from a
+   * shared background thread. Interrupts are logged exactly as by
+   * {@link LogExceptions#in(Runnable)}.</p>
+   *
+   * <p>Fingerprints are tracked in a lock-free map, so the hot path for a
+   * suppressed exception is a map lookup and an increment. The map is
+   * bounded; once full, fingerprints idle for longer than the interval are
+   * evicted, and any outstanding counts logged as summary lines. If it is
+   * still full, new fingerprints are logged in full without tracking.</p>
+   *
+   * <p>Thread safe, and intended to be shared.</p>
+   */
+  public static final class Throttle {
+
+    private static final int TOP_FRAMES = 3;
+
+    private final long intervalNanos;
+    private final int maxFingerprints;
+    private final Ticker ticker;
+    private final ConcurrentMap<List<Object>, Occurrences> occurrences = new ConcurrentHashMap<>();
+    private final AtomicBoolean summaryScheduled = new AtomicBoolean();
+
+    Throttle(long intervalNanos, int maxFingerprints, Ticker ticker) {
+      Preconditions.checkArgument(intervalNanos >= 0, "interval must not be negative");
+      Preconditions.checkArgument(maxFingerprints > 0, "maxFingerprints must be positive");
+      this.intervalNanos = intervalNanos;
+      this.maxFingerprints = maxFingerprints;
+      this.ticker = Preconditions.checkNotNull(ticker);
+    }
+
+    /**
+     * Runs the specified code. Any exceptions are logged, subject to
+     * throttling, and rethrown.
+     *
+     * @param runnable The code to run.
+     */
+    public void in(Runnable runnable) {
+      try {
+        runnable.run();
+      } catch (RuntimeException e) {
+        if (Thread.currentThread().isInterrupted()) {
+          logCaught(e);
+        } else {
+          logThrottled(e);
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Returns a {@link Runnable} which wraps the specified lambda in a call to
+     * {@link #in(Runnable)}.
+     *
+     * @param delegate The code to run.
+     * @return The wrapped code.
+     */
+    public Runnable wrap(Runnable delegate) {
+      return () -> in(delegate);
+    }
+
+    /**
+     * @return The number of distinct exceptions currently tracked.
+     */
+    public int fingerprints() {
+      return occurrences.size();
+    }
+
+    private void logThrottled(RuntimeException e) {
+      List<Object> fingerprint = fingerprint(e);
+      long now = ticker.read();
+      Occurrences existing = occurrences.get(fingerprint);
+      if (existing == null) {
+        if (occurrences.size() >= maxFingerprints) {
+          evictIdle(now);
+        }
+        if (occurrences.size() >= maxFingerprints) {
+          log.error("Caught exception", e);
+          return;
+        }
+        existing = occurrences.putIfAbsent(fingerprint, new Occurrences(e, now));
+        if (existing == null) {
+          log.error("Caught exception", e);
+          return;
+        }
+      }
+      long last = existing.lastLogged.get();
+      if (now - last >= intervalNanos && existing.lastLogged.compareAndSet(last, now)) {
+        long suppressed = existing.suppressed.getAndSet(0);
+        if (suppressed == 0) {
+          log.error("Caught exception", e);
+        } else {
+          log.error("Caught exception (suppressed {} identical since last logged)", suppressed, e);
+        }
+      } else {
+        existing.suppressed.incrementAndGet();
+        scheduleSummary(last + intervalNanos - now);
+      }
+    }
+
+    private void scheduleSummary(long delayNanos) {
+      if (summaryScheduled.compareAndSet(false, true)) {
+        Summaries.SCHEDULER.schedule(this::logSummaries, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+      }
+    }
+
+    /**
+     * Logs the counts of anything suppressed which hasn't been logged for
+     * the interval, and reschedules itself for anything suppressed more
+     * recently. The flag is cleared first, so suppressions which arrive
+     * during the scan either get picked up by it or schedule another.
+     */
+    void logSummaries() {
+      summaryScheduled.set(false);
+      long now = ticker.read();
+      long nextDelay = Long.MAX_VALUE;
+      for (Occurrences o : occurrences.values()) {
+        if (o.suppressed.get() == 0) {
+          continue;
+        }
+        long last = o.lastLogged.get();
+        if (now - last >= intervalNanos) {
+          if (o.lastLogged.compareAndSet(last, now)) {
+            long suppressed = o.suppressed.getAndSet(0);
+            if (suppressed != 0) {
+              log.error("Suppressed {} identical: {}", suppressed, o.description);
+            }
+          }
+        } else {
+          nextDelay = Math.min(nextDelay, last + intervalNanos - now);
+        }
+      }
+      if (nextDelay != Long.MAX_VALUE) {
+        scheduleSummary(nextDelay);
+      }
+    }
+
+    private void evictIdle(long now) {
+      for (Iterator<Occurrences> it = occurrences.values().iterator(); it.hasNext();) {
+        Occurrences o = it.next();
+        if (now - o.lastLogged.get() >= intervalNanos) {
+          it.remove();
+          long suppressed = o.suppressed.getAndSet(0);
+          if (suppressed != 0) {
+            log.error("Suppressed {} identical: {}", suppressed, o.description);
+          }
+        }
+      }
+    }
+
+    private static List<Object> fingerprint(Throwable e) {
+      Throwable root = Throwables.getRootCause(e);
+      StackTraceElement[] trace = root.getStackTrace();
+      int frames = Math.min(TOP_FRAMES, trace.length);
+      Object[] fingerprint = new Object[frames + 2];
+      fingerprint[0] = e.getClass().getName();
+      fingerprint[1] = root.getClass().getName();
+      System.arraycopy(trace, 0, fingerprint, 2, frames);
+      return Arrays.asList(fingerprint);
+    }
+
+    private static final class Occurrences {
+      private final String description;
+      private final AtomicLong lastLogged;
+      private final AtomicLong suppressed = new AtomicLong();
+
+      Occurrences(Throwable first, long now) {
+        Throwable root = Throwables.getRootCause(first);
+        StackTraceElement[] trace = root.getStackTrace();
+        String type = root == first
+            ? first.getClass().getName()
+            : first.getClass().getName() + " caused by " + root.getClass().getName();
+        this.description = trace.length == 0 ? type : type + " at " + trace[0];
+        this.lastLogged = new AtomicLong(now);
+      }
+    }
+
+    /**
+     * Lazily creates the daemon thread used to log summaries, shared between
+     * all throttles.
+     */
+    private static final class Summaries {
+      private static final ScheduledExecutorService SCHEDULER = new ScheduledThreadPoolExecutor(1,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("badgerutils-log-summary-%d").build());
+    }
+  }
+
   /**
    * Functional interface representing a {@link Runnable} which can be interrupted.
    * 
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+/**
+ * Unchecked wrapper for a checked exception which, unlike
+ * {@link RuntimeException}, does not capture a stack trace of its own.
+ * Filling in a stack trace is usually the most expensive part of throwing,
+ * and since the wrapped cause already has one, it adds little but cost.
+ *
+ * <p>Thrown by {@link CheckedExceptions#runStackless(CheckedExceptions.ThrowingRunnable)}
+ * and {@link CheckedExceptions#callStackless(java.util.concurrent.Callable)}.
+ * Use {@link #getCause()} to find out what went wrong and where.</p>
+ */
+public class UncheckedException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructor.
+   *
+   * @param cause The checked exception to wrap.
+   */
+  public UncheckedException(Throwable cause) {
+    super(cause == null ? null : cause.toString(), cause, true, false);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Additive-increase/multiplicative-decrease controller for batch sizes.
+ *
+ * <p>Starts at the minimum. Each full batch which the delegate processed
+ * within the target latency grows the batch size by a fixed step, probing
+ * for higher throughput. Each batch which breached the target cuts it to a
+ * little under the size which the observed per-item cost suggests would
+ * meet the target, but by no more than half, so a single slow batch doesn't
+ * overreact. After a breach, growth pauses for a few batches, so that the
+ * size doesn't keep bouncing off the target. The result is always kept
+ * between the configured bounds.</p>
+ */
+final class AdaptiveBatchSize {
+
+  private static final int STEPS = 64;
+  private static final double MARGIN = 0.9;
+  private static final int COOLDOWN_BATCHES = 8;
+
+  private final int min;
+  private final int max;
+  private final long targetNanos;
+  private final int step;
+  private int current;
+  private int cooldown;
+
+  AdaptiveBatchSize(int min, int max, long targetNanos) {
+    Preconditions.checkArgument(min > 0, "min must be positive");
+    Preconditions.checkArgument(max >= min, "max must be at least min");
+    Preconditions.checkArgument(targetNanos > 0, "target latency must be positive");
+    this.min = min;
+    this.max = max;
+    this.targetNanos = targetNanos;
+    this.step = Math.max(1, (max - min) / STEPS);
+    this.current = min;
+  }
+
+  int current() {
+    return current;
+  }
+
+  /**
+   * Records the latency of a batch and adjusts the batch size.
+   *
+   * @param size The number of items in the batch.
+   * @param nanos How long the delegate took to process it.
+   * @return The new batch size.
+   */
+  int update(int size, long nanos) {
+    if (nanos > targetNanos) {
+      long projected = (long) (MARGIN * size * targetNanos / nanos);
+      current = (int) Math.max(min, Math.max(current / 2, Math.min(projected, current - 1L)));
+      cooldown = COOLDOWN_BATCHES;
+    } else if (size >= current) {
+      if (cooldown > 0) {
+        cooldown--;
+      } else {
+        current = (int) Math.min(max, (long) current + step);
+      }
+    }
+    return current;
+  }
+}
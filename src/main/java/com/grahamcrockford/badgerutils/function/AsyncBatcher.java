@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grahamcrockford.badgerutils.function;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+
+/**
+ * Variant of {@link Batcher} which passes completed batches to the delegate
+ * on an {@link Executor}, so that the producing thread can carry on building
+ * the next batch while the previous one is being written.
+ *
+ * <p>At most {@code maxInFlight} batches may be submitted but incomplete at
+ * any one time. When that limit is reached, the producing thread blocks until
+ * one completes, so a slow delegate slows down the producer rather than
+ * allowing batches to pile up in memory.</p>
+ *
+ * <p>{@link #submit(Object)} returns a {@link CompletableFuture} for the
+ * batch containing the item, which completes when the delegate has processed
+ * that batch. {@link #close()} flushes any remaining items, waits for all
+ * batches to complete and rethrows any failures.</p>
+ *
+ * <p>As with {@link Batcher}, the <em>producer</em> side of this class is not
+ * thread safe, and will aggressively throw
+ * {@link ConcurrentModificationException} if used across threads. The
+ * delegate, however, may be called concurrently from the executor if
+ * {@code maxInFlight} is greater than one.</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class AsyncBatcher<T> implements Consumer<T>, AutoCloseable {
+
+  private final int batchSize;
+  private final Consumer<Iterable<T>> delegate;
+  private final BoundedDispatcher<Iterable<T>> dispatcher;
+  private final WeakReference<Thread> thread;
+  private List<T> batch;
+  private CompletableFuture<Void> batchResult;
+
+  /**
+   * Creates an {@link AsyncBatcher} which flushes to the supplied
+   * {@code delegate} on {@code executor} every {@code batchSize} items.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed, once all batches have completed.</p>
+   *
+   * @param batchSize The maximum number of items per batch. May be smaller for
+   *          the final flush on {@link #close()}.
+   * @param maxInFlight The maximum number of batches which may be submitted to
+   *          the executor without completing before the producer blocks.
+   * @param executor The executor on which to call the delegate. Not shut down
+   *          when the batcher is closed.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> AsyncBatcher<T> batch(int batchSize, int maxInFlight, Executor executor, Consumer<Iterable<T>> delegate) {
+    return new AsyncBatcher<>(batchSize, maxInFlight, executor, delegate);
+  }
+
+  private AsyncBatcher(int batchSize, int maxInFlight, Executor executor, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    this.batchSize = batchSize;
+    this.delegate = delegate;
+    this.dispatcher = new BoundedDispatcher<>(executor, maxInFlight, delegate);
+    this.thread = new WeakReference<>(Thread.currentThread());
+    this.batch = new ArrayList<>(batchSize);
+    this.batchResult = new CompletableFuture<>();
+  }
+
+  /**
+   * Receives the item and batches it. If the batch has reached the configured
+   * {@code batchSize}, it is submitted to the executor, blocking if the
+   * maximum number of batches are already in flight.
+   *
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(T t) {
+    submit(t);
+  }
+
+  /**
+   * As {@link #accept(Object)}, but returns a future which completes when the
+   * batch containing the item has been processed by the delegate.
+   *
+   * @param t The item.
+   * @return The future result of the item's batch. Completes exceptionally
+   *         with whatever the delegate threw if it fails.
+   */
+  public CompletableFuture<Void> submit(T t) {
+    checkConcurrent();
+    batch.add(t);
+    CompletableFuture<Void> result = batchResult;
+    if (batch.size() >= batchSize) {
+      flush();
+    }
+    return result;
+  }
+
+  /**
+   * @return The number of batches submitted to the executor which have not yet
+   *         completed.
+   */
+  public int inFlight() {
+    return dispatcher.inFlight();
+  }
+
+  private void flush() {
+    List<T> full = batch;
+    CompletableFuture<Void> result = batchResult;
+    batch = new ArrayList<>(batchSize);
+    batchResult = new CompletableFuture<>();
+    try {
+      dispatcher.dispatch(Collections.unmodifiableList(full), result);
+    } catch (RuntimeException e) {
+      // The batch is dropped, so don't leave callers waiting on it
+      result.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Flushes anything remaining in the current batch, then waits for all
+   * batches in flight to complete. If any batches failed, the failures are
+   * rethrown as described in
+   * {@link com.grahamcrockford.badgerutils.base.Failures}.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    checkConcurrent();
+    try {
+      if (!batch.isEmpty()) {
+        flush();
+      }
+      dispatcher.awaitAll();
+    } finally {
+      AutoCloseables.safeClose(delegate);
+    }
+  }
+
+  private void checkConcurrent() {
+    if (thread.get() == null || Thread.currentThread().getId() != thread.get().getId()) {
+      throw new ConcurrentModificationException(
+          "AsyncBatcher must not be shared between threads. Create instances on demand in threads as they are needed.");
+    }
+  }
+}
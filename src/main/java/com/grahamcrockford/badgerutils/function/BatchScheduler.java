@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Holds the scheduler shared by all time-triggered batchers which are not
+ * given one explicitly, so that we don't need a timer thread per instance.
+ */
+final class BatchScheduler {
+
+  private BatchScheduler() {
+  }
+
+  /**
+   * @return The shared scheduler. Created on first use. Runs on a single daemon
+   *         thread, so won't prevent JVM shutdown.
+   */
+  static ScheduledExecutorService shared() {
+    return Holder.INSTANCE;
+  }
+
+  private static final class Holder {
+    private static final ScheduledExecutorService INSTANCE = create();
+
+    private static ScheduledExecutorService create() {
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("badgerutils-batch-scheduler-%d").build());
+      executor.setRemoveOnCancelPolicy(true);
+      return executor;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Batching for {@link Stream}s, including parallel streams, which cannot
+ * use {@link Batcher} since it is confined to a single thread.
+ *
+ * <p>For example, to bulk load a large in-memory data set across all cores:</p>
+ *
+ * <pre><code>long loaded = records.parallelStream()
+ *    .collect(BatchStreams.batching(1000, dao::insertAll));</code></pre>
+ */
+public final class BatchStreams {
+
+  private BatchStreams() {
+  }
+
+  /**
+   * Lazily partitions a stream into batches of up to {@code batchSize} items.
+   *
+   * <p>If the stream is sequential, every batch except the last is full. If it
+   * is parallel, the source is split between threads and batched separately
+   * in each split, so there may be one short batch per split.</p>
+   *
+   * @param stream The stream to partition.
+   * @param batchSize The maximum number of items per batch.
+   * @return The stream of batches. Parallel if {@code stream} is parallel, and
+   *         closes {@code stream} when closed.
+   */
+  public static <T> Stream<List<T>> partition(Stream<T> stream, int batchSize) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    return StreamSupport.stream(new BatchSpliterator<>(stream.spliterator(), batchSize), stream.isParallel())
+        .onClose(stream::close);
+  }
+
+  /**
+   * Returns a {@link Collector} which collects items into batches of up to
+   * {@code batchSize}, in encounter order.
+   *
+   * <p>As with {@link #partition(Stream, int)}, each split of a parallel
+   * stream is batched separately, so there may be one short batch per
+   * split. If the stream is sequential, every batch except the last is
+   * full.</p>
+   *
+   * @param batchSize The maximum number of items per batch.
+   * @return The collector.
+   */
+  public static <T> Collector<T, ?, List<List<T>>> toBatches(int batchSize) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    return Collector.of(
+        () -> new Batches<T>(batchSize),
+        Batches::add,
+        Batches::combine,
+        Batches::finish);
+  }
+
+  /**
+   * Returns a {@link Collector} which passes items to {@code delegate} in
+   * batches of up to {@code batchSize} as they are collected, in the same way
+   * as {@link Batcher}.
+   *
+   * <p>On a parallel stream, each thread batches its own portion of the
+   * stream and flushes it to the delegate concurrently with the others, so
+   * the delegate <strong>must</strong> be thread safe. The leftovers from each
+   * portion are merged together as the results are combined, so at most one
+   * short batch is flushed at the end.</p>
+   *
+   * <p>The {@code delegate} is <em>not</em> closed, even if it is
+   * {@link AutoCloseable}.</p>
+   *
+   * @param batchSize The maximum number of items per batch.
+   * @param delegate The delegate consumer.
+   * @return The collector, which returns the number of items collected.
+   */
+  public static <T> Collector<T, ?, Long> batching(int batchSize, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    return Collector.of(
+        () -> new Accumulator<T>(batchSize, delegate),
+        Accumulator::add,
+        Accumulator::combine,
+        Accumulator::finish);
+  }
+
+  /**
+   * Mutable result container for {@link BatchStreams#batching(int, Consumer)}.
+   */
+  private static final class Accumulator<T> {
+
+    private final int batchSize;
+    private final Consumer<Iterable<T>> delegate;
+    private List<T> buffer;
+    private long count;
+
+    Accumulator(int batchSize, Consumer<Iterable<T>> delegate) {
+      this.batchSize = batchSize;
+      this.delegate = delegate;
+      this.buffer = new ArrayList<>(batchSize);
+    }
+
+    void add(T t) {
+      buffer.add(t);
+      count++;
+      if (buffer.size() >= batchSize) {
+        flush();
+      }
+    }
+
+    Accumulator<T> combine(Accumulator<T> other) {
+      count += other.count;
+      for (T t : other.buffer) {
+        buffer.add(t);
+        if (buffer.size() >= batchSize) {
+          flush();
+        }
+      }
+      return this;
+    }
+
+    Long finish() {
+      if (!buffer.isEmpty()) {
+        flush();
+      }
+      return count;
+    }
+
+    private void flush() {
+      delegate.accept(Collections.unmodifiableList(buffer));
+      buffer = new ArrayList<>(batchSize);
+    }
+  }
+
+  /**
+   * Mutable result container for {@link BatchStreams#toBatches(int)}.
+   */
+  private static final class Batches<T> {
+
+    private final int batchSize;
+    private final List<List<T>> batches = new ArrayList<>();
+    private List<T> buffer;
+
+    Batches(int batchSize) {
+      this.batchSize = batchSize;
+      this.buffer = new ArrayList<>(batchSize);
+    }
+
+    void add(T t) {
+      buffer.add(t);
+      if (buffer.size() >= batchSize) {
+        flush();
+      }
+    }
+
+    /**
+     * Appends the other split's batches after this one's. To keep encounter
+     * order, anything left over here becomes a short batch.
+     */
+    Batches<T> combine(Batches<T> other) {
+      if (!buffer.isEmpty()) {
+        flush();
+      }
+      batches.addAll(other.batches);
+      buffer = other.buffer;
+      return this;
+    }
+
+    List<List<T>> finish() {
+      if (!buffer.isEmpty()) {
+        flush();
+      }
+      return Collections.unmodifiableList(batches);
+    }
+
+    private void flush() {
+      batches.add(Collections.unmodifiableList(buffer));
+      buffer = new ArrayList<>(batchSize);
+    }
+  }
+
+  /**
+   * Wraps a {@link Spliterator} of items as a {@link Spliterator} of batches.
+   */
+  private static final class BatchSpliterator<T> implements Spliterator<List<T>> {
+
+    private final Spliterator<T> source;
+    private final int batchSize;
+
+    BatchSpliterator(Spliterator<T> source, int batchSize) {
+      this.source = source;
+      this.batchSize = batchSize;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super List<T>> action) {
+      List<T> batch = new ArrayList<>(batchSize);
+      while (batch.size() < batchSize && source.tryAdvance(batch::add)) {
+        // Keep going
+      }
+      if (batch.isEmpty()) {
+        return false;
+      }
+      action.accept(Collections.unmodifiableList(batch));
+      return true;
+    }
+
+    @Override
+    public Spliterator<List<T>> trySplit() {
+      if (source.estimateSize() <= batchSize) {
+        return null;
+      }
+      Spliterator<T> split = source.trySplit();
+      return split == null ? null : new BatchSpliterator<>(split, batchSize);
+    }
+
+    @Override
+    public long estimateSize() {
+      long size = source.estimateSize();
+      return size == Long.MAX_VALUE ? Long.MAX_VALUE : (size + batchSize - 1) / batchSize;
+    }
+
+    @Override
+    public int characteristics() {
+      return (source.characteristics() & ORDERED) | NONNULL;
+    }
+  }
+}
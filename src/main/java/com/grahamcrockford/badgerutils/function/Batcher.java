@@ -5,18 +5,43 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import com.google.common.base.Preconditions;
 
 import com.grahamcrockford.badgerutils.base.AutoCloseables;
+import com.grahamcrockford.badgerutils.function.BatcherMetrics.FlushCause;
 
 /**
  * Delegating {@link Consumer} which takes <code>T</code> as input and delegates
  * every <code>batchSize</code> records to a consumer of
  * <code>{@literal List<T>}</code>. On close, it flushes the remaining records
  * to the delegate as a final list.
+ *
+ * <p>Batches may alternatively (or additionally) be limited by total weight,
+ * such as the estimated serialised size of the items, using
+ * {@link #batchByWeight(long, ToLongFunction, Consumer)} or
+ * {@link #batch(int, long, ToLongFunction, Consumer)}.</p>
+ *
+ * <p>Where allocation rates matter, {@link #recycling(int, Consumer)} creates
+ * a batcher which reuses the same buffer for every batch, on the condition
+ * that the delegate does not hold on to the batch after returning.</p>
+ *
+ * <p>To monitor batching behaviour, pass {@link BatcherMetrics} to
+ * {@link #batch(int, BatcherMetrics, Consumer)}.</p>
+ *
+ * <p>If the best batch size isn't known up front, or varies with downstream
+ * load, {@link #adaptive(int, int, long, TimeUnit, Consumer)} creates a
+ * batcher which tunes it automatically to meet a target delegate
+ * latency.</p>
  * 
  * <p>This class is not thread safe, and will aggressively throw
- * {@link ConcurrentModificationException} if used across threads.</p>
+ * {@link ConcurrentModificationException} if used across threads. For a
+ * thread safe equivalent, which can also flush after a maximum linger time,
+ * see {@link ConcurrentBatcher}. To batch {@link java.util.stream.Stream}s,
+ * including parallel streams, see {@link BatchStreams}.</p>
  *
  * @param <T> The type processed.
  */
@@ -24,9 +49,16 @@ public final class Batcher<T> implements Consumer<T>, AutoCloseable {
 
   private static final int DEFAULT_BATCH_SIZE = 1000;
 
-  private final int batchSize;
+  private int batchSize;
+  private final AdaptiveBatchSize adaptive;
+  private final long maxWeight;
+  private final ToLongFunction<? super T> weigher;
+  private final int initialCapacity;
   private List<T> batch;
+  private final List<T> recycledView;
+  private long weight;
   private final Consumer<Iterable<T>> delegate;
+  private final BatcherMetrics metrics;
   private final WeakReference<Thread> thread;
 
   /**
@@ -41,7 +73,7 @@ public final class Batcher<T> implements Consumer<T>, AutoCloseable {
    * @return The batcher.
    */
   public static <T> Batcher<T> batch(Consumer<Iterable<T>> delegate) {
-    return new Batcher<>(DEFAULT_BATCH_SIZE, delegate);
+    return new Batcher<>(DEFAULT_BATCH_SIZE, Long.MAX_VALUE, null, false, BatcherMetrics.NONE, null, delegate);
   }
 
   /**
@@ -57,7 +89,114 @@ public final class Batcher<T> implements Consumer<T>, AutoCloseable {
    * @return The batcher.
    */
   public static <T> Batcher<T> batch(int batchSize, Consumer<Iterable<T>> delegate) {
-    return new Batcher<>(batchSize, delegate);
+    return new Batcher<>(batchSize, Long.MAX_VALUE, null, false, BatcherMetrics.NONE, null, delegate);
+  }
+
+  /**
+   * As {@link #batch(int, Consumer)}, but reports activity to the supplied
+   * {@code metrics}.
+   *
+   * @param batchSize The maximum number of items per batch. May be smaller for
+   *          the final flush on {@link #close()}.
+   * @param metrics Receives metrics.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> Batcher<T> batch(int batchSize, BatcherMetrics metrics, Consumer<Iterable<T>> delegate) {
+    return new Batcher<>(batchSize, Long.MAX_VALUE, null, false, Preconditions.checkNotNull(metrics), null, delegate);
+  }
+
+  /**
+   * Creates a {@link Batcher} which flushes to the supplied {@code delegate}
+   * whenever adding another item would take the total weight of the batch,
+   * as measured by {@code weigher}, over {@code maxWeight}. For example, to
+   * keep requests under a downstream size limit:
+   *
+   * <pre><code>Batcher.batchByWeight(4_000_000, Record::estimatedBytes, this::send);</code></pre>
+   *
+   * <p>An item which on its own weighs more than {@code maxWeight} is passed
+   * to the delegate in a batch of its own.</p>
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param maxWeight The maximum total weight of a batch.
+   * @param weigher Calculates the weight of an item. Must not be negative.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> Batcher<T> batchByWeight(long maxWeight, ToLongFunction<? super T> weigher, Consumer<Iterable<T>> delegate) {
+    return batch(Integer.MAX_VALUE, maxWeight, weigher, delegate);
+  }
+
+  /**
+   * Creates a {@link Batcher} which flushes to the supplied {@code delegate}
+   * every {@code batchSize} items <em>or</em> whenever adding another item
+   * would take the total weight of the batch over {@code maxWeight}, whichever
+   * comes first. See {@link #batchByWeight(long, ToLongFunction, Consumer)}.
+   *
+   * @param batchSize The maximum number of items per batch.
+   * @param maxWeight The maximum total weight of a batch.
+   * @param weigher Calculates the weight of an item. Must not be negative.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> Batcher<T> batch(int batchSize, long maxWeight, ToLongFunction<? super T> weigher, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(maxWeight > 0, "maxWeight must be positive");
+    return new Batcher<>(batchSize, maxWeight, Preconditions.checkNotNull(weigher), false, BatcherMetrics.NONE, null, delegate);
+  }
+
+  /**
+   * Creates a {@link Batcher} which flushes to the supplied {@code delegate}
+   * every {@code batchSize} items, but unlike {@link #batch(int, Consumer)},
+   * allocates nothing per batch. The <em>same</em> buffer is passed to the
+   * delegate on every flush, and cleared once the delegate returns.
+   *
+   * <p>This means that the delegate <strong>must not</strong> retain the
+   * {@link Iterable} it is passed, or anything obtained from it such as an
+   * iterator or view, beyond the call to {@link Consumer#accept(Object)}. If
+   * it needs to, it must copy the contents. Hence not suitable for use with
+   * asynchronous delegates.</p>
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param batchSize The maximum number of items per batch. May be smaller for
+   *          the final flush on {@link #close()}.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> Batcher<T> recycling(int batchSize, Consumer<Iterable<T>> delegate) {
+    return new Batcher<>(batchSize, Long.MAX_VALUE, null, true, BatcherMetrics.NONE, null, delegate);
+  }
+
+  /**
+   * Creates a {@link Batcher} which adjusts its batch size according to how
+   * long the {@code delegate} takes to process each batch, aiming for the
+   * largest batches (and therefore the highest throughput) possible without
+   * exceeding {@code targetLatency} per batch.
+   *
+   * <p>The batch size starts at {@code minBatchSize}. It grows by a small
+   * step after each full batch processed within the target, and is cut
+   * sharply (at most halved) after any batch which exceeds it. Where the
+   * delegate's latency is not mostly determined by the batch size, it will
+   * simply settle at one of the bounds.</p>
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param minBatchSize The smallest batch size to use.
+   * @param maxBatchSize The largest batch size to use.
+   * @param targetLatency The maximum time the delegate should take per batch.
+   * @param unit The units of {@code targetLatency}.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   * @see #currentBatchSize()
+   */
+  public static <T> Batcher<T> adaptive(int minBatchSize, int maxBatchSize, long targetLatency, TimeUnit unit,
+      Consumer<Iterable<T>> delegate) {
+    AdaptiveBatchSize adaptive = new AdaptiveBatchSize(minBatchSize, maxBatchSize, unit.toNanos(targetLatency));
+    return new Batcher<>(maxBatchSize, Long.MAX_VALUE, null, false, BatcherMetrics.NONE, adaptive, delegate);
   }
 
   /**
@@ -65,37 +204,93 @@ public final class Batcher<T> implements Consumer<T>, AutoCloseable {
    * 
    * @param batchSize The number of items to accept before flushing the batch to
    *          the delegate.
+   * @param maxWeight The maximum total weight of a batch.
+   * @param weigher Calculates the weight of each item. Null if batching by
+   *          count alone.
+   * @param recycle True to reuse the same buffer for every batch.
+   * @param metrics Receives metrics.
+   * @param adaptive Tunes the batch size. Null if fixed.
    * @param delegate The delegate consumer.
    */
-  private Batcher(int batchSize, Consumer<Iterable<T>> delegate) {
-    this.batchSize = batchSize;
+  private Batcher(int batchSize, long maxWeight, ToLongFunction<? super T> weigher, boolean recycle,
+      BatcherMetrics metrics, AdaptiveBatchSize adaptive, Consumer<Iterable<T>> delegate) {
+    this.batchSize = adaptive == null ? batchSize : adaptive.current();
+    this.adaptive = adaptive;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    this.initialCapacity = weigher == null && adaptive == null ? batchSize : Math.min(batchSize, DEFAULT_BATCH_SIZE);
     this.delegate = delegate;
-    this.batch = new ArrayList<>(batchSize);
+    this.metrics = metrics;
+    this.batch = new ArrayList<>(initialCapacity);
+    this.recycledView = recycle ? Collections.unmodifiableList(batch) : null;
     this.thread = new WeakReference<>(Thread.currentThread());
   }
 
   /**
    * Receives the item and batches it. If the batch has reached the configured
-   * {@code batchSize}, the batch is flushed to the delegate consumer.
+   * {@code batchSize}, or adding the item would exceed the maximum weight,
+   * the batch is flushed to the delegate consumer.
    * 
    * @see java.util.function.Consumer#accept(java.lang.Object)
    */
   @Override
   public void accept(T t) {
     checkConcurrent();
+    long itemWeight = 0;
+    if (weigher != null) {
+      itemWeight = weigher.applyAsLong(t);
+      Preconditions.checkArgument(itemWeight >= 0, "Negative weight %s for item", itemWeight);
+    }
     if (batch.size() >= batchSize) {
-      flush();
+      flush(FlushCause.SIZE);
+    } else if (!batch.isEmpty() && weight + itemWeight > maxWeight) {
+      flush(FlushCause.WEIGHT);
     }
     batch.add(t);
+    weight += itemWeight;
+    metrics.itemAccepted();
   }
 
   /**
    * Takes the currently buffered items and passes them as a list to the
    * delegate.
    */
-  private void flush() {
-    delegate.accept(Collections.unmodifiableList(batch));
-    batch = new ArrayList<>(batchSize);
+  private void flush(FlushCause cause) {
+    if (metrics == BatcherMetrics.NONE && adaptive == null) {
+      passToDelegate();
+      return;
+    }
+    int size = batch.size();
+    long start = System.nanoTime();
+    try {
+      passToDelegate();
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      metrics.batchFlushed(size, batchSize, cause, elapsed);
+      if (adaptive != null && cause != FlushCause.CLOSE) {
+        batchSize = adaptive.update(size, elapsed);
+      }
+    }
+  }
+
+  private void passToDelegate() {
+    if (recycledView == null) {
+      delegate.accept(Collections.unmodifiableList(batch));
+      batch = new ArrayList<>(initialCapacity);
+    } else {
+      delegate.accept(recycledView);
+      batch.clear();
+    }
+    weight = 0;
+  }
+
+  /**
+   * @return The number of items at which the batch will next be flushed.
+   *         Fixed unless created using
+   *         {@link #adaptive(int, int, long, TimeUnit, Consumer)}.
+   */
+  public int currentBatchSize() {
+    return batchSize;
   }
 
   /**
@@ -107,7 +302,7 @@ public final class Batcher<T> implements Consumer<T>, AutoCloseable {
   public void close() {
     checkConcurrent();
     if (!batch.isEmpty()) {
-      flush();
+      flush(FlushCause.CLOSE);
     }
     AutoCloseables.safeClose(delegate);
   }
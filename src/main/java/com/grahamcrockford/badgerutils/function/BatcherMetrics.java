@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+/**
+ * Receives notifications of batcher activity, for monitoring. Implement this
+ * to feed the metrics library of your choice (Micrometer, Dropwizard
+ * Metrics etc.), or use {@link SimpleBatcherMetrics}.
+ *
+ * <p>Methods are called on the hot path, and from whichever thread
+ * happens to be accepting or flushing, so implementations must be thread
+ * safe and cheap. When metrics are not required, batchers use
+ * {@link #NONE}, and skip timing calls entirely.</p>
+ */
+public interface BatcherMetrics {
+
+  /**
+   * Ignores everything.
+   */
+  BatcherMetrics NONE = new BatcherMetrics() {
+    @Override
+    public void itemAccepted() {
+    }
+
+    @Override
+    public void batchFlushed(int size, int batchSize, FlushCause cause, long delegateNanos) {
+    }
+  };
+
+  /**
+   * Called whenever an item is accepted.
+   */
+  void itemAccepted();
+
+  /**
+   * Called after a batch has been passed to the delegate, whether or not the
+   * delegate succeeded.
+   *
+   * @param size The number of items in the batch.
+   * @param batchSize The configured maximum batch size, so the fill ratio
+   *          is {@code size / batchSize}. {@link Integer#MAX_VALUE} if there
+   *          is no limit on count.
+   * @param cause The reason for the flush.
+   * @param delegateNanos The time spent inside the delegate, in nanoseconds.
+   */
+  void batchFlushed(int size, int batchSize, FlushCause cause, long delegateNanos);
+
+  /**
+   * The reason a batch was flushed.
+   */
+  enum FlushCause {
+
+    /**
+     * The batch reached the maximum batch size.
+     */
+    SIZE,
+
+    /**
+     * The batch reached its maximum weight.
+     */
+    WEIGHT,
+
+    /**
+     * The oldest item in the batch reached the maximum linger time.
+     */
+    LINGER,
+
+    /**
+     * The batcher was closed.
+     */
+    CLOSE
+  }
+}
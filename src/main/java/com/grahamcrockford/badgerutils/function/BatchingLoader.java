@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+
+/**
+ * Coalesces individual lookups into bulk loads, avoiding the "N+1" pattern
+ * where many threads each make a separate call to a service which could
+ * have answered them all at once.
+ *
+ * <p>Each call to {@link #load(Object)} returns a {@link CompletableFuture}.
+ * Requested keys from all threads are collected in a single buffer, and
+ * passed to the {@link BulkLoader} once {@code maxBatchSize} keys are waiting
+ * or the oldest has waited for the window, whichever comes first. Concurrent
+ * requests for a key which is already being loaded share the same future,
+ * so each key appears at most once in flight. Nothing is cached once a load
+ * completes.</p>
+ *
+ * <p>Bulk loads run on the supplied {@link Executor}, so that neither the
+ * callers of {@link #load(Object)} nor the shared linger scheduler block on
+ * them. If the bulk load throws, every future in the batch completes
+ * exceptionally. Keys missing from the returned map complete exceptionally
+ * with {@link NoSuchElementException}; map absent keys to {@code null} in
+ * the result if absence is expected.</p>
+ *
+ * <p>Thread safe.</p>
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public final class BatchingLoader<K, V> implements AutoCloseable {
+
+  private final BulkLoader<K, V> bulkLoader;
+  private final Executor executor;
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final ConcurrentBatcher<K> batcher;
+
+  /**
+   * Creates a {@link BatchingLoader}.
+   *
+   * @param maxBatchSize The maximum number of keys per bulk load.
+   * @param window The maximum time to wait for more keys before loading.
+   * @param unit The units of {@code window}.
+   * @param executor Runs the bulk loads.
+   * @param bulkLoader Loads the values for a set of keys. Must be thread
+   *          safe.
+   * @return The loader.
+   */
+  public static <K, V> BatchingLoader<K, V> loader(int maxBatchSize, long window, TimeUnit unit, Executor executor,
+      BulkLoader<K, V> bulkLoader) {
+    return new BatchingLoader<>(maxBatchSize, window, unit, executor, bulkLoader);
+  }
+
+  private BatchingLoader(int maxBatchSize, long window, TimeUnit unit, Executor executor,
+      BulkLoader<K, V> bulkLoader) {
+    this.bulkLoader = Preconditions.checkNotNull(bulkLoader);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.batcher = ConcurrentBatcher.unstriped(maxBatchSize, window, unit, this::dispatch);
+  }
+
+  /**
+   * Requests the value for a key.
+   *
+   * @param key The key.
+   * @return A future which completes with the value once loaded.
+   * @throws IllegalStateException If the loader has been closed.
+   */
+  public CompletableFuture<V> load(K key) {
+    Preconditions.checkNotNull(key);
+    CompletableFuture<V> existing = inFlight.get(key);
+    if (existing != null) {
+      return existing;
+    }
+    CompletableFuture<V> future = new CompletableFuture<>();
+    existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      return existing;
+    }
+    try {
+      batcher.accept(key);
+    } catch (RuntimeException e) {
+      // Anyone who joined in the meantime needs to hear about it too
+      inFlight.remove(key, future);
+      future.completeExceptionally(e);
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * @return The number of distinct keys requested but not yet loaded.
+   */
+  public int inFlight() {
+    return inFlight.size();
+  }
+
+  private void dispatch(Iterable<K> batch) {
+    Set<K> keys = new LinkedHashSet<>();
+    Iterables.addAll(keys, batch);
+    try {
+      executor.execute(() -> loadAll(keys));
+    } catch (RuntimeException e) {
+      keys.forEach(k -> complete(k, null, e));
+    }
+  }
+
+  private void loadAll(Set<K> keys) {
+    Map<K, V> values;
+    try {
+      values = Preconditions.checkNotNull(bulkLoader.loadAll(Collections.unmodifiableSet(keys)),
+          "Bulk loader returned null");
+    } catch (Throwable t) {
+      if (t instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      keys.forEach(k -> complete(k, null, t));
+      return;
+    }
+    for (K key : keys) {
+      V value = values.get(key);
+      if (value == null && !values.containsKey(key)) {
+        complete(key, null, new NoSuchElementException("No value loaded for " + key));
+      } else {
+        complete(key, value, null);
+      }
+    }
+  }
+
+  /**
+   * Completes the future for the key. It is removed from the in-flight map
+   * first, so that a dependent action which requests the key again triggers
+   * a fresh load rather than getting the completed future.
+   */
+  private void complete(K key, V value, Throwable failure) {
+    CompletableFuture<V> future = inFlight.remove(key);
+    if (future == null) {
+      return;
+    }
+    if (failure == null) {
+      future.complete(value);
+    } else {
+      future.completeExceptionally(failure);
+    }
+  }
+
+  /**
+   * Stops accepting further keys and dispatches any still waiting. Does not
+   * wait for bulk loads to complete, or shut down the executor.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    batcher.close();
+  }
+
+  /**
+   * Loads values in bulk.
+   *
+   * @param <K> The key type.
+   * @param <V> The value type.
+   */
+  @FunctionalInterface
+  public interface BulkLoader<K, V> {
+
+    /**
+     * @param keys The keys to load. Distinct, and never empty.
+     * @return The values, by key.
+     * @throws Exception If the load failed, which fails all the keys.
+     */
+    Map<K, V> loadAll(Set<K> keys) throws Exception;
+  }
+}
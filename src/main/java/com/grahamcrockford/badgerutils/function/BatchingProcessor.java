@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.LongMath;
+
+/**
+ * Reactive Streams equivalent of {@link ConcurrentBatcher}. Subscribes to a
+ * publisher of items and publishes them to a single subscriber in batches.
+ *
+ * <p>Unlike the batchers, which push batches to their delegate synchronously
+ * and so can only apply backpressure by blocking, this honours the demand
+ * signalled by the subscriber. Items are only requested from upstream to
+ * satisfy batches which have been requested downstream, so at most
+ * {@code batchSize} items are buffered for each outstanding batch.</p>
+ *
+ * <p>A batch is emitted when it is full, when its oldest item has been
+ * waiting for the linger time (if set), or when the upstream completes.
+ * Batches cut short by the linger time or completion still use up a unit of
+ * demand. Cancellation by the subscriber is passed upstream. Errors from
+ * upstream are passed on immediately, discarding any buffered items.</p>
+ *
+ * <p>Implements {@code org.reactivestreams} rather than
+ * {@code java.util.concurrent.Flow}, since this library targets Java 8.
+ * On Java 9 and later, use {@code org.reactivestreams.FlowAdapters} to
+ * convert. The {@code org.reactivestreams:reactive-streams} dependency is
+ * optional, so callers using this class must add it to their own build.</p>
+ *
+ * <p>Thread safe. The processor may be subscribed to only one publisher, and
+ * may only have one subscriber.</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class BatchingProcessor<T> implements Processor<T, List<T>> {
+
+  private final int batchSize;
+  private final long maxLingerNanos;
+  private final ScheduledExecutorService scheduler;
+  private final Object lock = new Object();
+  private final AtomicInteger wip = new AtomicInteger();
+
+  // All guarded by lock
+  private Subscription upstream;
+  private boolean hasSubscriber;
+  private Subscriber<? super List<T>> downstream;
+  private List<T> current;
+  private final ArrayDeque<List<T>> ready = new ArrayDeque<>();
+  private long generation;
+  private long demand;
+  private long outstanding;
+  private boolean upstreamDone;
+  private Throwable error;
+  private boolean cancelled;
+  private boolean terminated;
+
+  /**
+   * Creates a {@link BatchingProcessor} which only emits partial batches
+   * when the upstream completes.
+   *
+   * @param batchSize The number of items in each batch.
+   * @return The processor.
+   */
+  public static <T> BatchingProcessor<T> batch(int batchSize) {
+    return new BatchingProcessor<>(batchSize, 0, null);
+  }
+
+  /**
+   * Creates a {@link BatchingProcessor} which also emits partial batches
+   * once the oldest item has waited for {@code maxLinger}.
+   *
+   * @param batchSize The number of items in each batch.
+   * @param maxLinger The maximum time to buffer an item.
+   * @param unit The units of {@code maxLinger}.
+   * @return The processor.
+   */
+  public static <T> BatchingProcessor<T> batch(int batchSize, long maxLinger, TimeUnit unit) {
+    return batch(batchSize, maxLinger, unit, BatchScheduler.shared());
+  }
+
+  /**
+   * As {@link #batch(int, long, TimeUnit)}, but runs linger flushes on the
+   * specified {@code scheduler}.
+   *
+   * @param batchSize The number of items in each batch.
+   * @param maxLinger The maximum time to buffer an item.
+   * @param unit The units of {@code maxLinger}.
+   * @param scheduler The scheduler on which to run linger flushes. Not shut
+   *          down by the processor.
+   * @return The processor.
+   */
+  public static <T> BatchingProcessor<T> batch(int batchSize, long maxLinger, TimeUnit unit,
+      ScheduledExecutorService scheduler) {
+    Preconditions.checkArgument(maxLinger > 0, "maxLinger must be positive");
+    return new BatchingProcessor<>(batchSize, unit.toNanos(maxLinger), Preconditions.checkNotNull(scheduler));
+  }
+
+  private BatchingProcessor(int batchSize, long maxLingerNanos, ScheduledExecutorService scheduler) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    this.batchSize = batchSize;
+    this.maxLingerNanos = maxLingerNanos;
+    this.scheduler = scheduler;
+    this.current = new ArrayList<>(batchSize);
+  }
+
+  @Override
+  public void onSubscribe(Subscription subscription) {
+    Preconditions.checkNotNull(subscription);
+    boolean reject;
+    synchronized (lock) {
+      reject = upstream != null || cancelled;
+      if (!reject) {
+        upstream = subscription;
+      }
+    }
+    if (reject) {
+      subscription.cancel();
+    } else {
+      drain();
+    }
+  }
+
+  @Override
+  public void onNext(T t) {
+    Preconditions.checkNotNull(t);
+    synchronized (lock) {
+      if (cancelled || upstreamDone) {
+        return;
+      }
+      if (outstanding != Long.MAX_VALUE) {
+        outstanding--;
+      }
+      current.add(t);
+      if (current.size() == batchSize) {
+        cut();
+      } else if (current.size() == 1 && maxLingerNanos != 0) {
+        scheduleLinger(generation);
+      }
+    }
+    drain();
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    Preconditions.checkNotNull(t);
+    synchronized (lock) {
+      if (upstreamDone) {
+        return;
+      }
+      upstreamDone = true;
+      error = t;
+      discard();
+    }
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    synchronized (lock) {
+      if (upstreamDone) {
+        return;
+      }
+      upstreamDone = true;
+      if (!current.isEmpty()) {
+        cut();
+      }
+    }
+    drain();
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super List<T>> subscriber) {
+    Preconditions.checkNotNull(subscriber);
+    boolean reject;
+    synchronized (lock) {
+      reject = hasSubscriber;
+      hasSubscriber = true;
+    }
+    if (reject) {
+      subscriber.onSubscribe(new Subscription() {
+        @Override
+        public void request(long n) {
+        }
+        @Override
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("BatchingProcessor only supports a single subscriber"));
+      return;
+    }
+    subscriber.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        BatchingProcessor.this.request(n);
+      }
+      @Override
+      public void cancel() {
+        BatchingProcessor.this.cancel();
+      }
+    });
+    synchronized (lock) {
+      downstream = subscriber;
+    }
+    drain();
+  }
+
+  private void request(long n) {
+    if (n <= 0) {
+      fail(new IllegalArgumentException("Non-positive request " + n + " (Reactive Streams rule 3.9)"));
+      return;
+    }
+    synchronized (lock) {
+      demand = LongMath.saturatedAdd(demand, n);
+    }
+    drain();
+  }
+
+  private void cancel() {
+    Subscription toCancel;
+    synchronized (lock) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      discard();
+      toCancel = upstream;
+    }
+    if (toCancel != null) {
+      toCancel.cancel();
+    }
+  }
+
+  /**
+   * Cancels upstream and signals the error downstream, in place of anything
+   * still buffered.
+   */
+  private void fail(Throwable t) {
+    Subscription toCancel;
+    synchronized (lock) {
+      if (terminated || cancelled) {
+        return;
+      }
+      toCancel = upstreamDone ? null : upstream;
+      upstreamDone = true;
+      error = t;
+      discard();
+    }
+    if (toCancel != null) {
+      toCancel.cancel();
+    }
+    drain();
+  }
+
+  private void scheduleLinger(long batchGeneration) {
+    scheduler.schedule(() -> {
+      synchronized (lock) {
+        if (cancelled || generation != batchGeneration || current.isEmpty()) {
+          return;
+        }
+        cut();
+      }
+      drain();
+    }, maxLingerNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Moves the current batch to the queue of batches ready to emit. Must hold
+   * the lock.
+   */
+  private void cut() {
+    ready.add(Collections.unmodifiableList(current));
+    current = new ArrayList<>(batchSize);
+    generation++;
+  }
+
+  /**
+   * Drops anything buffered. Must hold the lock.
+   */
+  private void discard() {
+    ready.clear();
+    current = new ArrayList<>(0);
+    generation++;
+  }
+
+  /**
+   * Works out how many more items to request from upstream to fill the
+   * batches requested downstream. Must hold the lock.
+   */
+  private long replenish() {
+    if (outstanding == Long.MAX_VALUE || upstreamDone) {
+      return 0;
+    }
+    long batchesNeeded = demand - ready.size();
+    if (batchesNeeded <= 0) {
+      return 0;
+    }
+    long wanted = LongMath.saturatedMultiply(batchesNeeded, batchSize);
+    if (wanted == Long.MAX_VALUE) {
+      outstanding = Long.MAX_VALUE;
+      return Long.MAX_VALUE;
+    }
+    long toRequest = wanted - current.size() - outstanding;
+    if (toRequest <= 0) {
+      return 0;
+    }
+    outstanding += toRequest;
+    return toRequest;
+  }
+
+  /**
+   * Emits whatever can be emitted and requests more from upstream. Signals
+   * from any thread may trigger a drain; only one thread drains at a time,
+   * and signals arriving while it does so (including reentrant ones) cause it
+   * to loop again rather than recursing.
+   */
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      boolean again = true;
+      while (again) {
+        again = false;
+        Subscriber<? super List<T>> subscriber;
+        Subscription subscription;
+        List<T> batch = null;
+        Throwable failure = null;
+        boolean complete = false;
+        long toRequest = 0;
+        synchronized (lock) {
+          subscriber = downstream;
+          subscription = upstream;
+          if (subscriber == null || cancelled || terminated) {
+            break;
+          }
+          if (error != null) {
+            terminated = true;
+            failure = error;
+          } else if (!ready.isEmpty() && demand > 0) {
+            batch = ready.poll();
+            if (demand != Long.MAX_VALUE) {
+              demand--;
+            }
+          } else if (upstreamDone && ready.isEmpty()) {
+            terminated = true;
+            complete = true;
+          } else if (subscription != null) {
+            toRequest = replenish();
+          }
+        }
+        if (failure != null) {
+          subscriber.onError(failure);
+        } else if (complete) {
+          subscriber.onComplete();
+        } else if (batch != null) {
+          try {
+            subscriber.onNext(batch);
+          } catch (RuntimeException e) {
+            fail(e);
+          }
+          again = true;
+        } else if (toRequest > 0) {
+          subscription.request(toRequest);
+        }
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+}
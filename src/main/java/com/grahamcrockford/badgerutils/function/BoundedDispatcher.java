@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.grahamcrockford.badgerutils.base.CheckedExceptions;
+import com.grahamcrockford.badgerutils.base.Failures;
+
+/**
+ * Hands batches to a delegate on an {@link Executor}, allowing at most
+ * {@code maxInFlight} to be outstanding at once. Further calls to
+ * {@link #dispatch(Object, CompletableFuture)} block until one completes,
+ * providing backpressure to the caller.
+ *
+ * @param <B> The batch type.
+ */
+final class BoundedDispatcher<B> {
+
+  private final Executor executor;
+  private final int maxInFlight;
+  private final Consumer<? super B> delegate;
+  private final Semaphore permits;
+  private final Failures failures = new Failures();
+
+  BoundedDispatcher(Executor executor, int maxInFlight, Consumer<? super B> delegate) {
+    Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+    this.executor = Preconditions.checkNotNull(executor);
+    this.maxInFlight = maxInFlight;
+    this.delegate = delegate;
+    this.permits = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Submits the batch, blocking first if the maximum number of batches are
+   * already in flight.
+   *
+   * @param batch The batch.
+   * @param result Completed when the delegate has processed the batch, or
+   *          exceptionally if it fails.
+   * @throws RuntimeException Wrapping {@link InterruptedException} if
+   *           interrupted while waiting (the interrupt flag is preserved).
+   */
+  void dispatch(B batch, CompletableFuture<Void> result) {
+    CheckedExceptions.runUnchecked(permits::acquire);
+    submit(batch, result);
+  }
+
+  /**
+   * As {@link #dispatch(Object, CompletableFuture)}, for callers which only
+   * need failures reported by {@link #awaitAll()}.
+   *
+   * @param batch The batch.
+   */
+  void dispatch(B batch) {
+    dispatch(batch, null);
+  }
+
+  /**
+   * Submits the batch if fewer than the maximum number of batches are in
+   * flight, otherwise returns immediately. Failures are reported by
+   * {@link #awaitAll()}.
+   *
+   * @param batch The batch.
+   * @return True if submitted.
+   */
+  boolean tryDispatch(B batch) {
+    if (!permits.tryAcquire()) {
+      return false;
+    }
+    submit(batch, null);
+    return true;
+  }
+
+  private void submit(B batch, CompletableFuture<Void> result) {
+    try {
+      executor.execute(() -> {
+        try {
+          delegate.accept(batch);
+          if (result != null) {
+            result.complete(null);
+          }
+        } catch (Throwable t) {
+          failures.add(t);
+          if (result != null) {
+            result.completeExceptionally(t);
+          }
+        } finally {
+          // Only once the result is complete, so awaitAll() never returns
+          // ahead of it
+          permits.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      try {
+        if (result != null) {
+          result.completeExceptionally(e);
+        }
+      } finally {
+        permits.release();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return The number of batches submitted but not yet processed.
+   */
+  int inFlight() {
+    return maxInFlight - permits.availablePermits();
+  }
+
+  /**
+   * Blocks until all batches in flight have been processed, then rethrows any
+   * failures recorded since the last call using {@link Failures#rethrow()}.
+   */
+  void awaitAll() {
+    CheckedExceptions.runUnchecked(() -> permits.acquire(maxInFlight));
+    permits.release(maxInFlight);
+    failures.rethrow();
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+
+/**
+ * Variant of {@link Batcher} which coalesces items with the same key within
+ * each batch, so that the delegate only sees the latest (or merged) value
+ * per key. Where traffic consists of repeated updates to the same entities,
+ * this can cut the writes done by the delegate dramatically.
+ *
+ * <pre><code>CoalescingBatcher.coalesce(1000, Update::entityId, this::writeAll);</code></pre>
+ *
+ * <p>A batch is flushed once it contains {@code batchSize} distinct keys.
+ * Items are delivered in the order in which their keys first appeared in the
+ * batch, or sorted by key if a comparator is supplied, which suits index
+ * friendly inserts.</p>
+ *
+ * <p>Keys are tracked in a flat open-addressing hash table, reused between
+ * batches, so coalescing allocates nothing per item. Keys must not be null
+ * and must implement {@link Object#hashCode()} and
+ * {@link Object#equals(Object)} consistently.</p>
+ *
+ * <p>As with {@link Batcher}, this class is not thread safe, and will
+ * aggressively throw {@link ConcurrentModificationException} if used across
+ * threads.</p>
+ *
+ * @param <K> The key type.
+ * @param <T> The type processed.
+ */
+public final class CoalescingBatcher<K, T> implements Consumer<T>, AutoCloseable {
+
+  private static final int EMPTY = -1;
+
+  private final int batchSize;
+  private final Function<? super T, ? extends K> keyFunction;
+  private final BinaryOperator<T> merge;
+  private final Comparator<? super K> sortBy;
+  private final Consumer<Iterable<T>> delegate;
+  private final WeakReference<Thread> thread;
+
+  private final Object[] keys;
+  private final Object[] values;
+  private final int[] table;
+  private final int mask;
+  private int size;
+  private long coalesced;
+
+  /**
+   * Creates a {@link CoalescingBatcher} which keeps the last value accepted
+   * for each key.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param batchSize The maximum number of distinct keys per batch.
+   * @param keyFunction Extracts the key from each item.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <K, T> CoalescingBatcher<K, T> coalesce(int batchSize, Function<? super T, ? extends K> keyFunction,
+      Consumer<Iterable<T>> delegate) {
+    return new CoalescingBatcher<>(batchSize, keyFunction, (a, b) -> b, null, delegate);
+  }
+
+  /**
+   * Creates a {@link CoalescingBatcher} which combines the values for each
+   * key using {@code merge}, optionally sorting each batch by key.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param batchSize The maximum number of distinct keys per batch.
+   * @param keyFunction Extracts the key from each item.
+   * @param merge Combines the existing value for a key with a new one.
+   * @param sortBy Orders each batch by key. Null to preserve the order in
+   *          which keys first appeared.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <K, T> CoalescingBatcher<K, T> coalesce(int batchSize, Function<? super T, ? extends K> keyFunction,
+      BinaryOperator<T> merge, Comparator<? super K> sortBy, Consumer<Iterable<T>> delegate) {
+    return new CoalescingBatcher<>(batchSize, keyFunction, Preconditions.checkNotNull(merge), sortBy, delegate);
+  }
+
+  private CoalescingBatcher(int batchSize, Function<? super T, ? extends K> keyFunction, BinaryOperator<T> merge,
+      Comparator<? super K> sortBy, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    Preconditions.checkArgument(batchSize <= 1 << 29, "batchSize too large");
+    this.batchSize = batchSize;
+    this.keyFunction = Preconditions.checkNotNull(keyFunction);
+    this.merge = merge;
+    this.sortBy = sortBy;
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.thread = new WeakReference<>(Thread.currentThread());
+    this.keys = new Object[batchSize];
+    this.values = new Object[batchSize];
+    this.table = new int[IntMath.ceilingPowerOfTwo(batchSize * 2)];
+    this.mask = table.length - 1;
+    Arrays.fill(table, EMPTY);
+  }
+
+  /**
+   * Receives the item and either adds it to the batch or coalesces it with
+   * the item already batched with the same key. If the batch already holds
+   * {@code batchSize} distinct keys and this is a new one, the batch is
+   * flushed to the delegate first.
+   *
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void accept(T t) {
+    checkConcurrent();
+    K key = Preconditions.checkNotNull(keyFunction.apply(t), "Null key");
+    int slot = slot(key);
+    int index = table[slot];
+    if (index != EMPTY) {
+      values[index] = merge.apply((T) values[index], t);
+      coalesced++;
+      return;
+    }
+    if (size == batchSize) {
+      flush();
+      slot = slot(key);
+    }
+    keys[size] = key;
+    values[size] = t;
+    table[slot] = size++;
+  }
+
+  /**
+   * @return The number of items which have been coalesced into others
+   *         rather than delivered separately.
+   */
+  public long coalesced() {
+    return coalesced;
+  }
+
+  /**
+   * Finds the slot holding {@code key}, or the empty slot where it should
+   * go, using linear probing.
+   */
+  private int slot(Object key) {
+    int slot = spread(key.hashCode()) & mask;
+    while (true) {
+      int index = table[slot];
+      if (index == EMPTY || keys[index].equals(key)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private static int spread(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void flush() {
+    if (sortBy != null) {
+      sortByKey();
+    }
+    List<T> batch = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      batch.add((T) values[i]);
+    }
+    Arrays.fill(keys, 0, size, null);
+    Arrays.fill(values, 0, size, null);
+    Arrays.fill(table, EMPTY);
+    size = 0;
+    delegate.accept(Collections.unmodifiableList(batch));
+  }
+
+  /**
+   * Sorts the batched keys, and their values with them, in place. The hash
+   * table is about to be cleared, so its indexes don't need updating. Uses
+   * heapsort, which needs no working space; the keys are distinct, so it
+   * doesn't matter that it isn't stable.
+   */
+  private void sortByKey() {
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      siftDown(i, size);
+    }
+    for (int end = size - 1; end > 0; end--) {
+      swap(0, end);
+      siftDown(0, end);
+    }
+  }
+
+  private void siftDown(int root, int end) {
+    while (true) {
+      int child = 2 * root + 1;
+      if (child >= end) {
+        return;
+      }
+      if (child + 1 < end && compareKeys(child, child + 1) < 0) {
+        child++;
+      }
+      if (compareKeys(root, child) >= 0) {
+        return;
+      }
+      swap(root, child);
+      root = child;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private int compareKeys(int a, int b) {
+    return sortBy.compare((K) keys[a], (K) keys[b]);
+  }
+
+  private void swap(int a, int b) {
+    Object key = keys[a];
+    keys[a] = keys[b];
+    keys[b] = key;
+    Object value = values[a];
+    values[a] = values[b];
+    values[b] = value;
+  }
+
+  /**
+   * Flushes anything remaining in the current batch.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    checkConcurrent();
+    if (size != 0) {
+      flush();
+    }
+    AutoCloseables.safeClose(delegate);
+  }
+
+  private void checkConcurrent() {
+    if (thread.get() == null || Thread.currentThread().getId() != thread.get().getId()) {
+      throw new ConcurrentModificationException(
+          "CoalescingBatcher must not be shared between threads. Create instances on demand in threads as they are needed.");
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts items to and from bytes, for batchers which store items outside
+ * the heap or on disk.
+ *
+ * <p>The signatures are chosen to fit most serialisation libraries directly.
+ * For example, Protocol Buffers messages can be encoded with
+ * {@code toByteArray()} and decoded with {@code parseFrom(ByteBuffer)}.</p>
+ *
+ * @param <T> The type encoded.
+ */
+public interface Codec<T> {
+
+  /**
+   * @param value The value to encode.
+   * @return The encoded value.
+   */
+  byte[] encode(T value);
+
+  /**
+   * @param bytes A buffer containing exactly one encoded value, between its
+   *          position and limit. The buffer may be read-only, may be a view
+   *          of a larger buffer, and must not be retained after returning.
+   * @return The decoded value.
+   */
+  T decode(ByteBuffer bytes);
+
+  /**
+   * @return A codec for {@link String}s, encoded as UTF-8.
+   */
+  static Codec<String> utf8() {
+    return new Codec<String>() {
+      @Override
+      public byte[] encode(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+      }
+
+      @Override
+      public String decode(ByteBuffer bytes) {
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+      }
+    };
+  }
+}
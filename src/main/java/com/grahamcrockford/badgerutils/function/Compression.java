@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Compresses and decompresses whole batches of encoded items, for use with
+ * {@link SerializedBatcher}.
+ *
+ * <p>Implementations may reuse buffers between calls, so are not expected to
+ * be thread safe. Create one per batcher. They may also hold native
+ * resources, released by {@link #close()}; a {@link SerializedBatcher}
+ * closes its compression when it is closed.</p>
+ */
+public interface Compression extends AutoCloseable {
+
+  /**
+   * @param uncompressed The bytes to compress, between its position and
+   *          limit. Must not be retained after returning.
+   * @return The compressed bytes, between its position and limit. May be
+   *         reused by the next call.
+   */
+  ByteBuffer compress(ByteBuffer uncompressed);
+
+  /**
+   * @param compressed The output of {@link #compress(ByteBuffer)}, between
+   *          its position and limit.
+   * @return The original bytes. May be reused by the next call.
+   * @throws IllegalArgumentException If the input is corrupt.
+   */
+  ByteBuffer decompress(ByteBuffer compressed);
+
+  /**
+   * Releases any resources held. Does nothing by default.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  default void close() {
+  }
+
+  /**
+   * Creates a {@link Compression} using {@link Deflater}. The compressed
+   * form is the length of the uncompressed data as an {@code int}, followed
+   * by the raw deflate stream.
+   *
+   * <p>The {@link Deflater} and {@link Inflater}, and the buffers used with
+   * them, are reused between calls. Until Java 11, these only work on
+   * arrays, so each batch is copied into a heap array to compress it, and
+   * the result copied back into a direct buffer. Close the compression (or
+   * the batcher using it) to free the native memory they hold.</p>
+   *
+   * @param level The compression level, from {@link Deflater#BEST_SPEED} to
+   *          {@link Deflater#BEST_COMPRESSION}.
+   * @return The compression.
+   */
+  static Compression deflate(int level) {
+    Preconditions.checkArgument(level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION,
+        "Invalid compression level %s", level);
+    return new Compression() {
+
+      private final Deflater deflater = new Deflater(level, true);
+      private final Inflater inflater = new Inflater(true);
+      private byte[] in = new byte[0];
+      private byte[] out = new byte[0];
+      private ByteBuffer result = ByteBuffer.allocateDirect(0);
+
+      @Override
+      public ByteBuffer compress(ByteBuffer uncompressed) {
+        int length = uncompressed.remaining();
+        if (in.length < length) {
+          in = new byte[length];
+        }
+        uncompressed.duplicate().get(in, 0, length);
+        deflater.reset();
+        deflater.setInput(in, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+          if (compressedLength == out.length) {
+            out = Arrays.copyOf(out, Math.max(64, out.length * 2));
+          }
+          compressedLength += deflater.deflate(out, compressedLength, out.length - compressedLength);
+        }
+        if (result.capacity() < Integer.BYTES + compressedLength) {
+          result = ByteBuffer.allocateDirect(Integer.BYTES + compressedLength);
+        }
+        result.clear();
+        result.putInt(length).put(out, 0, compressedLength).flip();
+        return result.asReadOnlyBuffer();
+      }
+
+      @Override
+      public ByteBuffer decompress(ByteBuffer compressed) {
+        ByteBuffer source = compressed.duplicate();
+        int length = source.getInt();
+        Preconditions.checkArgument(length >= 0, "Corrupt length %s", length);
+        int compressedLength = source.remaining();
+        if (in.length < compressedLength) {
+          in = new byte[compressedLength];
+        }
+        source.get(in, 0, compressedLength);
+        if (out.length < length) {
+          out = new byte[length];
+        }
+        inflater.reset();
+        try {
+          inflater.setInput(in, 0, compressedLength);
+          int read = 0;
+          while (read < length && !inflater.finished()) {
+            int n = inflater.inflate(out, read, length - read);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+              break;
+            }
+            read += n;
+          }
+          Preconditions.checkArgument(read == length, "Expected %s bytes but got %s", length, read);
+        } catch (DataFormatException e) {
+          throw new IllegalArgumentException(e);
+        }
+        return ByteBuffer.wrap(out, 0, length).asReadOnlyBuffer();
+      }
+
+      @Override
+      public void close() {
+        try {
+          deflater.end();
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+import com.grahamcrockford.badgerutils.base.LogExceptions;
+import com.grahamcrockford.badgerutils.function.BatcherMetrics.FlushCause;
+
+/**
+ * Thread-safe equivalent of {@link Batcher}, which may be shared between any
+ * number of producer threads.
+ *
+ * <p>Items are buffered in a fixed set of lock-striped buffers, selected by
+ * the identity of the calling thread, so producers on different threads rarely
+ * contend with each other. Whenever a buffer reaches {@code batchSize} items
+ * it is passed to the delegate on the thread which filled it. On
+ * {@link #close()}, the partially-filled buffers are merged together and
+ * flushed as full batches, so (unless a linger time is set) at most one batch
+ * smaller than {@code batchSize} is ever produced.</p>
+ *
+ * <p>Optionally, a maximum linger time may be specified (see
+ * {@link #batch(int, long, TimeUnit, Consumer)}), in the same sense as Kafka's
+ * {@code linger.ms}. A buffer is then also flushed once its oldest item has
+ * been waiting that long, even if it is not yet full. This bounds the latency
+ * of items on quiet streams at the cost of some smaller batches. Linger
+ * flushes run on a scheduler shared between all batchers unless one is
+ * supplied, so slow delegates should either be fast or be given their own
+ * scheduler via {@link #batch(int, long, TimeUnit, ScheduledExecutorService, Consumer)}.</p>
+ *
+ * <p>Activity may be monitored by passing {@link BatcherMetrics} on
+ * creation.</p>
+ *
+ * <p>Since batches are flushed on producer threads (and the scheduler thread,
+ * if lingering is enabled), the delegate may be called concurrently and
+ * <strong>must</strong> itself be thread safe.</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class ConcurrentBatcher<T> implements Consumer<T>, AutoCloseable {
+
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private final int batchSize;
+  private final Consumer<Iterable<T>> delegate;
+  private final long maxLingerNanos;
+  private final ScheduledExecutorService scheduler;
+  private final BatcherMetrics metrics;
+  private final Stripe<T>[] stripes;
+  private final int mask;
+  private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Creates a {@link ConcurrentBatcher} which flushes to the supplied
+   * {@code delegate} every 1000 items. For a custom batch size, use
+   * {@link #batch(int, Consumer)}.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param delegate The delegate consumer. Must be thread safe.
+   * @return The batcher.
+   */
+  public static <T> ConcurrentBatcher<T> batch(Consumer<Iterable<T>> delegate) {
+    return new ConcurrentBatcher<>(DEFAULT_BATCH_SIZE, 0, null, BatcherMetrics.NONE, defaultStripes(), delegate);
+  }
+
+  /**
+   * Creates a {@link ConcurrentBatcher} which flushes to the supplied
+   * {@code delegate} every {@code batchSize} items.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param batchSize The maximum number of items per batch. May be smaller for
+   *          the final flush on {@link #close()}.
+   * @param delegate The delegate consumer. Must be thread safe.
+   * @return The batcher.
+   */
+  public static <T> ConcurrentBatcher<T> batch(int batchSize, Consumer<Iterable<T>> delegate) {
+    return new ConcurrentBatcher<>(batchSize, 0, null, BatcherMetrics.NONE, defaultStripes(), delegate);
+  }
+
+  /**
+   * As {@link #batch(int, Consumer)}, but reports activity to the supplied
+   * {@code metrics}.
+   *
+   * @param batchSize The maximum number of items per batch. May be smaller for
+   *          the final flush on {@link #close()}.
+   * @param metrics Receives metrics. Must be thread safe.
+   * @param delegate The delegate consumer. Must be thread safe.
+   * @return The batcher.
+   */
+  public static <T> ConcurrentBatcher<T> batch(int batchSize, BatcherMetrics metrics, Consumer<Iterable<T>> delegate) {
+    return new ConcurrentBatcher<>(batchSize, 0, null, Preconditions.checkNotNull(metrics), defaultStripes(), delegate);
+  }
+
+  /**
+   * Creates a {@link ConcurrentBatcher} which flushes to the supplied
+   * {@code delegate} every {@code batchSize} items, or when the oldest item in
+   * a buffer has been waiting for {@code maxLinger}, whichever comes first.
+   * Linger flushes are run on a single daemon thread shared by all batchers.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param batchSize The maximum number of items per batch.
+   * @param maxLinger The maximum time an item may be buffered before it is
+   *          flushed.
+   * @param unit The units of {@code maxLinger}.
+   * @param delegate The delegate consumer. Must be thread safe.
+   * @return The batcher.
+   */
+  public static <T> ConcurrentBatcher<T> batch(int batchSize, long maxLinger, TimeUnit unit, Consumer<Iterable<T>> delegate) {
+    return batch(batchSize, maxLinger, unit, BatchScheduler.shared(), delegate);
+  }
+
+  /**
+   * As {@link #batch(int, long, TimeUnit, Consumer)}, but runs linger flushes
+   * on the specified {@code scheduler}.
+   *
+   * @param batchSize The maximum number of items per batch.
+   * @param maxLinger The maximum time an item may be buffered before it is
+   *          flushed.
+   * @param unit The units of {@code maxLinger}.
+   * @param scheduler The scheduler on which to run linger flushes. Not shut
+   *          down when the batcher is closed.
+   * @param delegate The delegate consumer. Must be thread safe.
+   * @return The batcher.
+   */
+  public static <T> ConcurrentBatcher<T> batch(int batchSize, long maxLinger, TimeUnit unit,
+      ScheduledExecutorService scheduler, Consumer<Iterable<T>> delegate) {
+    return batch(batchSize, maxLinger, unit, scheduler, BatcherMetrics.NONE, delegate);
+  }
+
+  /**
+   * As {@link #batch(int, long, TimeUnit, ScheduledExecutorService, Consumer)},
+   * but reports activity to the supplied {@code metrics}.
+   *
+   * @param batchSize The maximum number of items per batch.
+   * @param maxLinger The maximum time an item may be buffered before it is
+   *          flushed.
+   * @param unit The units of {@code maxLinger}.
+   * @param scheduler The scheduler on which to run linger flushes. Not shut
+   *          down when the batcher is closed.
+   * @param metrics Receives metrics. Must be thread safe.
+   * @param delegate The delegate consumer. Must be thread safe.
+   * @return The batcher.
+   */
+  public static <T> ConcurrentBatcher<T> batch(int batchSize, long maxLinger, TimeUnit unit,
+      ScheduledExecutorService scheduler, BatcherMetrics metrics, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(maxLinger > 0, "maxLinger must be positive");
+    return new ConcurrentBatcher<>(batchSize, unit.toNanos(maxLinger), Preconditions.checkNotNull(scheduler),
+        Preconditions.checkNotNull(metrics), defaultStripes(), delegate);
+  }
+
+  /**
+   * As {@link #batch(int, long, TimeUnit, Consumer)}, but with a single buffer
+   * shared by all producer threads, so that everything accepted within the
+   * linger time goes into the same batch, up to {@code batchSize}. For use
+   * where that matters more than contention between producers.
+   */
+  static <T> ConcurrentBatcher<T> unstriped(int batchSize, long maxLinger, TimeUnit unit,
+      Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(maxLinger > 0, "maxLinger must be positive");
+    return new ConcurrentBatcher<>(batchSize, unit.toNanos(maxLinger), BatchScheduler.shared(), BatcherMetrics.NONE, 1,
+        delegate);
+  }
+
+  private static int defaultStripes() {
+    return Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param batchSize The number of items to accept before flushing the batch to
+   *          the delegate.
+   * @param maxLingerNanos The maximum time to buffer an item, or zero to
+   *          buffer until full.
+   * @param scheduler The scheduler for linger flushes. Null if
+   *          {@code maxLingerNanos} is zero.
+   * @param metrics Receives metrics.
+   * @param stripeCount The number of buffers. Must be a power of two.
+   * @param delegate The delegate consumer.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private ConcurrentBatcher(int batchSize, long maxLingerNanos, ScheduledExecutorService scheduler,
+      BatcherMetrics metrics, int stripeCount, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    this.batchSize = batchSize;
+    this.maxLingerNanos = maxLingerNanos;
+    this.scheduler = scheduler;
+    this.metrics = metrics;
+    this.delegate = delegate;
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe<>(batchSize);
+    }
+    this.mask = stripeCount - 1;
+  }
+
+  /**
+   * Receives the item and batches it. If the calling thread's buffer has
+   * reached the configured {@code batchSize}, the batch is flushed to the
+   * delegate consumer on the calling thread.
+   *
+   * @throws IllegalStateException If the batcher has been closed.
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(T t) {
+    Stripe<T> stripe = stripes[(int) Thread.currentThread().getId() & mask];
+    List<T> full;
+    synchronized (stripe) {
+      if (stripe.closed) {
+        throw new IllegalStateException("Batcher closed");
+      }
+      stripe.buffer.add(t);
+      metrics.itemAccepted();
+      int size = stripe.buffer.size();
+      if (size < batchSize) {
+        if (size == 1 && maxLingerNanos != 0) {
+          scheduleLinger(stripe, stripe.generation);
+        }
+        return;
+      }
+      full = stripe.take(batchSize);
+      flushLock.readLock().lock();
+    }
+    flush(full, FlushCause.SIZE);
+  }
+
+  /**
+   * Arranges for the stripe to be flushed after the linger time, if the batch
+   * started in the specified {@code generation} hasn't been flushed by then.
+   * Nothing is waiting on the result, so failures are logged.
+   */
+  private void scheduleLinger(Stripe<T> stripe, long generation) {
+    scheduler.schedule(LogExceptions.wrap(() -> {
+      List<T> lingering;
+      synchronized (stripe) {
+        if (stripe.closed || stripe.generation != generation || stripe.buffer.isEmpty()) {
+          return;
+        }
+        lingering = stripe.take(batchSize);
+        flushLock.readLock().lock();
+      }
+      flush(lingering, FlushCause.LINGER);
+    }), maxLingerNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Passes a batch to the delegate, then releases the read side of the flush
+   * lock. The caller must acquire it before releasing the stripe's monitor,
+   * so that {@link #close()} can't close the delegate between the batch being
+   * taken and passed on.
+   */
+  private void flush(List<T> batch, FlushCause cause) {
+    try {
+      passToDelegate(batch, cause);
+    } finally {
+      flushLock.readLock().unlock();
+    }
+  }
+
+  private void passToDelegate(List<T> batch, FlushCause cause) {
+    if (metrics == BatcherMetrics.NONE) {
+      delegate.accept(Collections.unmodifiableList(batch));
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      delegate.accept(Collections.unmodifiableList(batch));
+    } finally {
+      metrics.batchFlushed(batch.size(), batchSize, cause, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Prevents further items being accepted, waits for any flushes in progress
+   * on other threads to complete, then merges and flushes anything remaining
+   * in the buffers. Subsequent calls have no effect.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    List<T> remaining = new ArrayList<>(batchSize);
+    for (Stripe<T> stripe : stripes) {
+      synchronized (stripe) {
+        stripe.closed = true;
+        remaining.addAll(stripe.buffer);
+        stripe.buffer = Collections.emptyList();
+      }
+    }
+    flushLock.writeLock().lock();
+    try {
+      for (int i = 0; i < remaining.size(); i += batchSize) {
+        passToDelegate(remaining.subList(i, Math.min(remaining.size(), i + batchSize)), FlushCause.CLOSE);
+      }
+    } finally {
+      flushLock.writeLock().unlock();
+    }
+    AutoCloseables.safeClose(delegate);
+  }
+
+  /**
+   * A single buffer. All fields are guarded by the stripe's monitor.
+   */
+  private static final class Stripe<T> {
+
+    private List<T> buffer;
+    private long generation;
+    private boolean closed;
+
+    Stripe(int batchSize) {
+      this.buffer = new ArrayList<>(batchSize);
+    }
+
+    /**
+     * Swaps out the current buffer, starting a new generation.
+     */
+    List<T> take(int batchSize) {
+      List<T> result = buffer;
+      buffer = new ArrayList<>(batchSize);
+      generation++;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Preconditions;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+
+/**
+ * Variant of {@link Batcher} which writes every item to a write-ahead log on
+ * disk before buffering it, so that items accepted but not yet flushed
+ * survive a crash.
+ *
+ * <p>Each batch is logged to its own segment file in the specified
+ * directory. Items are appended sequentially, with a length and checksum,
+ * and forced to disk in groups of {@code syncEvery} (group commit). Once the
+ * delegate has accepted the batch, the segment is deleted. The directory
+ * itself is forced to disk after segments are created and deleted, so that
+ * neither is undone by a crash. On creation, any
+ * segments left behind by a previous instance which didn't close cleanly are
+ * replayed to the delegate, in order, before anything else happens. A torn
+ * write at the end of a segment is detected by its checksum and ignored.</p>
+ *
+ * <p>This gives <em>at-least-once</em> delivery: a batch which was accepted
+ * by the delegate just before a crash, but whose segment had not yet been
+ * deleted, is delivered again on restart, so the delegate should be
+ * idempotent. Items accepted since the last group commit may be lost in a
+ * crash; use {@link #sync()} or {@code syncEvery = 1} if that matters more
+ * than throughput.</p>
+ *
+ * <p>Only one instance may use a directory at a time. This is enforced with
+ * a lock file, held until {@link #close()}, which protects against other
+ * instances both in this JVM and in other processes. As with
+ * {@link Batcher}, this class is not thread safe, and will aggressively
+ * throw {@link ConcurrentModificationException} if used across threads.</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class DurableBatcher<T> implements Consumer<T>, AutoCloseable {
+
+  private static final String SUFFIX = ".wal";
+  private static final String LOCK_FILE = "lock";
+  private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+  private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+  /**
+   * Directories locked by this JVM. File locks are held per process, so
+   * they can't protect against a second instance in the same JVM, and on
+   * some platforms closing any channel to the lock file would release them.
+   */
+  private static final Set<Path> LOCKED = ConcurrentHashMap.newKeySet();
+
+  private final Path directory;
+  private final int batchSize;
+  private final int syncEvery;
+  private final Codec<T> codec;
+  private final Consumer<Iterable<T>> delegate;
+  private final WeakReference<Thread> thread;
+  private final CRC32 crc = new CRC32();
+  private final Path lockedDirectory;
+  private final FileChannel lock;
+  private boolean unlocked;
+
+  private List<T> batch;
+  private long nextSegment;
+  private Path segmentPath;
+  private FileChannel segment;
+  private boolean segmentLinked;
+  private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+  private int unsynced;
+
+  /**
+   * Creates a {@link DurableBatcher}, first replaying any batches left in
+   * {@code directory} by a previous instance to the {@code delegate}.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param directory The directory in which to keep the log. Created if it
+   *          doesn't exist.
+   * @param batchSize The maximum number of items per batch. May be smaller for
+   *          the final flush on {@link #close()}.
+   * @param syncEvery The number of items to write between forcing the log to
+   *          disk.
+   * @param codec Converts items to and from bytes.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   * @throws UncheckedIOException If the log could not be read or created.
+   * @throws IllegalStateException If another instance is using the
+   *           directory.
+   */
+  public static <T> DurableBatcher<T> open(Path directory, int batchSize, int syncEvery, Codec<T> codec,
+      Consumer<Iterable<T>> delegate) {
+    return new DurableBatcher<>(directory, batchSize, syncEvery, codec, delegate);
+  }
+
+  private DurableBatcher(Path directory, int batchSize, int syncEvery, Codec<T> codec, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    Preconditions.checkArgument(syncEvery > 0, "syncEvery must be positive");
+    this.directory = directory;
+    this.batchSize = batchSize;
+    this.syncEvery = syncEvery;
+    this.codec = Preconditions.checkNotNull(codec);
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.thread = new WeakReference<>(Thread.currentThread());
+    this.batch = new ArrayList<>(batchSize);
+    try {
+      Files.createDirectories(directory);
+      this.lockedDirectory = directory.toRealPath();
+      this.lock = lock(lockedDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    boolean replayed = false;
+    try {
+      replay();
+      replayed = true;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (!replayed) {
+        unlock();
+      }
+    }
+  }
+
+  private static FileChannel lock(Path directory) throws IOException {
+    if (!LOCKED.add(directory)) {
+      throw new IllegalStateException(directory + " is already in use by another DurableBatcher");
+    }
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      if (channel.tryLock() == null) {
+        throw new IllegalStateException(directory + " is already in use by another process");
+      }
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      LOCKED.remove(directory);
+      if (channel != null) {
+        channel.close();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Releases the directory lock, if not already released. Closing the
+   * channel releases the file lock.
+   */
+  private void unlock() {
+    if (unlocked) {
+      return;
+    }
+    unlocked = true;
+    try {
+      AutoCloseables.safeClose(lock);
+    } finally {
+      LOCKED.remove(lockedDirectory);
+    }
+  }
+
+  /**
+   * Logs the item, then batches it. If the batch has reached the configured
+   * {@code batchSize}, it is flushed to the delegate and its segment
+   * deleted.
+   *
+   * @throws UncheckedIOException If the item could not be logged.
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(T t) {
+    checkConcurrent();
+    try {
+      append(codec.encode(t));
+      batch.add(t);
+      if (++unsynced >= syncEvery) {
+        sync();
+      }
+      if (batch.size() >= batchSize) {
+        flush();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Forces all items logged so far to disk.
+   *
+   * @throws UncheckedIOException If the log could not be written.
+   */
+  public void sync() {
+    checkConcurrent();
+    try {
+      if (segment != null) {
+        writeOut();
+        segment.force(false);
+        if (!segmentLinked) {
+          syncDirectory();
+          segmentLinked = true;
+        }
+      }
+      unsynced = 0;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void append(byte[] bytes) throws IOException {
+    if (segment == null) {
+      segmentPath = directory.resolve(String.format("%020d%s", nextSegment++, SUFFIX));
+      segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      segmentLinked = false;
+    }
+    int recordBytes = RECORD_HEADER_BYTES + bytes.length;
+    if (writeBuffer.remaining() < recordBytes) {
+      writeOut();
+      if (writeBuffer.capacity() < recordBytes) {
+        writeBuffer = ByteBuffer.allocate(recordBytes);
+      }
+    }
+    crc.reset();
+    crc.update(bytes, 0, bytes.length);
+    writeBuffer.putInt(bytes.length);
+    writeBuffer.putInt((int) crc.getValue());
+    writeBuffer.put(bytes);
+  }
+
+  private void writeOut() throws IOException {
+    writeBuffer.flip();
+    while (writeBuffer.hasRemaining()) {
+      segment.write(writeBuffer);
+    }
+    writeBuffer.clear();
+  }
+
+  /**
+   * Passes the batch to the delegate, then deletes its segment. If the
+   * delegate fails, the batch and its segment are left as they are.
+   */
+  private void flush() throws IOException {
+    delegate.accept(Collections.unmodifiableList(batch));
+    batch = new ArrayList<>(batchSize);
+    writeBuffer.clear();
+    unsynced = 0;
+    segment.close();
+    segment = null;
+    Files.delete(segmentPath);
+    syncDirectory();
+  }
+
+  /**
+   * Forces the directory entries to disk, so that segments created or
+   * deleted stay that way after a crash. Some platforms (notably Windows)
+   * can't open a directory; there, this is left to the file system.
+   */
+  private void syncDirectory() throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(directory, StandardOpenOption.READ);
+    } catch (IOException e) {
+      return;
+    }
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Delivers any segments found on disk, in order, deleting each as it is
+   * accepted.
+   */
+  private void replay() throws IOException {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      stream.forEach(segments::add);
+    }
+    Collections.sort(segments);
+    for (Path path : segments) {
+      String name = path.getFileName().toString();
+      nextSegment = Math.max(nextSegment, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+      List<T> recovered = read(path);
+      if (!recovered.isEmpty()) {
+        delegate.accept(Collections.unmodifiableList(recovered));
+      }
+      Files.delete(path);
+    }
+    if (!segments.isEmpty()) {
+      syncDirectory();
+    }
+  }
+
+  private List<T> read(Path path) throws IOException {
+    List<T> items = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+    while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        break;
+      }
+      crc.reset();
+      crc.update(buffer.array(), buffer.position(), length);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      ByteBuffer item = buffer.slice();
+      item.limit(length);
+      items.add(codec.decode(item.asReadOnlyBuffer()));
+      buffer.position(buffer.position() + length);
+    }
+    return items;
+  }
+
+  /**
+   * Flushes anything remaining in the current batch and deletes its segment,
+   * then releases the directory. If the delegate fails, the segment is
+   * forced to disk and kept, to be replayed by the next instance.
+   *
+   * @throws UncheckedIOException If the log could not be written or deleted.
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    checkConcurrent();
+    try {
+      if (!batch.isEmpty()) {
+        flush();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      try {
+        closeSegment();
+      } finally {
+        try {
+          unlock();
+        } finally {
+          AutoCloseables.safeClose(delegate);
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the segment left open if the final flush failed, making sure
+   * everything logged to it is on disk first.
+   */
+  private void closeSegment() {
+    if (segment == null) {
+      return;
+    }
+    try {
+      sync();
+    } finally {
+      AutoCloseables.safeClose(segment);
+      segment = null;
+    }
+  }
+
+  /**
+   * Releases the directory without flushing or deleting anything, as if the
+   * process had died.
+   */
+  void abandon() {
+    AutoCloseables.safeClose(segment);
+    segment = null;
+    unlock();
+  }
+
+  private void checkConcurrent() {
+    if (thread.get() == null || Thread.currentThread().getId() != thread.get().getId()) {
+      throw new ConcurrentModificationException(
+          "DurableBatcher must not be shared between threads. Create instances on demand in threads as they are needed.");
+    }
+  }
+}
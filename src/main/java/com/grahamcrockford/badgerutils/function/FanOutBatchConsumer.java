@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+import com.grahamcrockford.badgerutils.base.Failures;
+
+/**
+ * Batch consumer, for use as the delegate of a {@link Batcher} or similar,
+ * which delivers every batch to several sinks, such as a database, a search
+ * index and an archive, each progressing independently.
+ *
+ * <pre><code>try (Batcher&lt;Record&gt; batcher = Batcher.batch(1000, FanOutBatchConsumer.fanOut(ImmutableList.of(
+ *     FanOutBatchConsumer.sink("db", dbExecutor, 4, this::writeToDb),
+ *     FanOutBatchConsumer.sink("index", indexExecutor, 2, this::index),
+ *     FanOutBatchConsumer.sink("archive", archiveExecutor, 16, this::archive))))) {
+ *   ...
+ * }</code></pre>
+ *
+ * <p>Each batch is copied once into an unmodifiable list, which is shared
+ * read-only between all the sinks. Each sink runs on its own
+ * {@link Executor} with its own limit on batches in flight, so a slow sink
+ * only holds back the others once it has its maximum number of batches
+ * outstanding; until then, the batch is handed to every sink with capacity
+ * without waiting for the rest. Use {@link Sink#lag()} to see how far
+ * behind each sink is.</p>
+ *
+ * <p>Failures thrown by a sink do not stop the others, or further batches
+ * being delivered to that sink. They are collected and rethrown by
+ * {@link #close()} (see {@link Failures}).</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class FanOutBatchConsumer<T> implements Consumer<Iterable<T>>, AutoCloseable {
+
+  private final List<Sink<T>> sinks;
+
+  /**
+   * Creates a {@link FanOutBatchConsumer}.
+   *
+   * @param sinks The sinks to deliver to. Each may only be used once.
+   * @return The consumer.
+   */
+  public static <T> FanOutBatchConsumer<T> fanOut(List<Sink<T>> sinks) {
+    return new FanOutBatchConsumer<>(sinks);
+  }
+
+  /**
+   * Creates a {@link Sink}, for passing to {@link #fanOut(List)}.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the {@link FanOutBatchConsumer} is closed.</p>
+   *
+   * @param name The name of the sink, for monitoring.
+   * @param executor Runs the delegate.
+   * @param maxInFlight The maximum number of batches which may be submitted to
+   *          the executor but not yet processed by the delegate.
+   * @param delegate The delegate consumer.
+   * @return The sink.
+   */
+  public static <T> Sink<T> sink(String name, Executor executor, int maxInFlight, Consumer<Iterable<T>> delegate) {
+    return new Sink<>(name, executor, maxInFlight, delegate);
+  }
+
+  private FanOutBatchConsumer(List<Sink<T>> sinks) {
+    Preconditions.checkArgument(!sinks.isEmpty(), "No sinks");
+    for (Sink<T> sink : sinks) {
+      Preconditions.checkArgument(sink.used.compareAndSet(false, true), "Sink %s already used", sink.name);
+    }
+    this.sinks = ImmutableList.copyOf(sinks);
+  }
+
+  /**
+   * Copies the batch and hands it to each sink, blocking only if a sink
+   * already has its maximum number of batches in flight.
+   *
+   * @throws RuntimeException Wrapping {@link InterruptedException} if
+   *           interrupted while waiting (the interrupt flag is preserved).
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(Iterable<T> batch) {
+    List<T> shared = Collections.unmodifiableList(Lists.newArrayList(batch));
+    // Sinks which have counted the batch but not yet been handed it
+    BitSet pending = new BitSet(sinks.size());
+    try {
+      for (int i = 0; i < sinks.size(); i++) {
+        Sink<T> sink = sinks.get(i);
+        sink.accepted.incrementAndGet();
+        pending.set(i);
+        if (sink.dispatcher.tryDispatch(shared)) {
+          pending.clear(i);
+        }
+      }
+      for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+        sinks.get(i).dispatcher.dispatch(shared);
+        pending.clear(i);
+      }
+    } finally {
+      // Only non-empty if dispatching threw, in which case these sinks
+      // will never see the batch
+      for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+        sinks.get(i).accepted.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * @return The sinks, in the order supplied.
+   */
+  public List<Sink<T>> sinks() {
+    return sinks;
+  }
+
+  /**
+   * Waits for every sink to process all the batches delivered to it, then
+   * closes the sinks' delegates. If any failed, the failures are rethrown
+   * as described in {@link Failures}.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    Failures failures = new Failures();
+    for (Sink<T> sink : sinks) {
+      try {
+        sink.dispatcher.awaitAll();
+      } catch (RuntimeException | Error e) {
+        failures.add(e);
+      }
+    }
+    for (Sink<T> sink : sinks) {
+      AutoCloseables.safeClose(sink.delegate);
+    }
+    failures.rethrow();
+  }
+
+  /**
+   * One of the destinations of a {@link FanOutBatchConsumer}. Create using
+   * {@link FanOutBatchConsumer#sink(String, Executor, int, Consumer)}.
+   *
+   * @param <T> The type processed.
+   */
+  public static final class Sink<T> {
+
+    private final String name;
+    private final Consumer<Iterable<T>> delegate;
+    private final BoundedDispatcher<Iterable<T>> dispatcher;
+    private final AtomicBoolean used = new AtomicBoolean();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private Sink(String name, Executor executor, int maxInFlight, Consumer<Iterable<T>> delegate) {
+      this.name = Preconditions.checkNotNull(name);
+      this.delegate = Preconditions.checkNotNull(delegate);
+      this.dispatcher = new BoundedDispatcher<>(executor, maxInFlight, this::deliver);
+    }
+
+    private void deliver(Iterable<T> batch) {
+      try {
+        delegate.accept(batch);
+      } catch (Throwable t) {
+        failed.incrementAndGet();
+        throw t;
+      } finally {
+        completed.incrementAndGet();
+      }
+    }
+
+    /**
+     * @return The name of the sink.
+     */
+    public String name() {
+      return name;
+    }
+
+    /**
+     * @return The number of batches submitted to the executor but not yet
+     *         processed.
+     */
+    public int inFlight() {
+      return dispatcher.inFlight();
+    }
+
+    /**
+     * @return The number of batches accepted by the
+     *         {@link FanOutBatchConsumer} which this sink has yet to finish
+     *         processing, whether in flight or waiting to be submitted.
+     */
+    public long lag() {
+      return accepted.get() - completed.get();
+    }
+
+    /**
+     * @return The number of batches this sink has finished processing,
+     *         successfully or not.
+     */
+    public long completed() {
+      return completed.get();
+    }
+
+    /**
+     * @return The number of batches on which this sink's delegate threw an
+     *         exception.
+     */
+    public long failed() {
+      return failed.get();
+    }
+
+    @Override
+    public String toString() {
+      return name + " (lag " + lag() + ", in flight " + inFlight() + ")";
+    }
+  }
+}
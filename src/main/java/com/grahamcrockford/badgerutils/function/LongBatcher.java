@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grahamcrockford.badgerutils.function;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import com.google.common.base.Preconditions;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+
+/**
+ * Primitive specialisation of {@link Batcher} for <code>long</code> values,
+ * which avoids boxing and stores pending values in a single
+ * <code>long[]</code>.
+ *
+ * <p>Batches may be delivered either as exact-length copies of the buffer
+ * ({@link #batch(int, Consumer)}) or, with no allocation at all, as slices
+ * of the buffer itself ({@link #batchSlices(int, BatchConsumer)}).</p>
+ *
+ * <p>This class is not thread safe, and will aggressively throw
+ * {@link ConcurrentModificationException} if used across threads.</p>
+ */
+public final class LongBatcher implements LongConsumer, AutoCloseable {
+
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private final long[] buffer;
+  private int size;
+  private final BatchConsumer delegate;
+  private final Object closeable;
+  private final WeakReference<Thread> thread;
+
+  /**
+   * Creates a {@link LongBatcher} which flushes to the supplied {@code delegate}
+   * every 1000 values. For a custom batch size, use
+   * {@link #batch(int, Consumer)}.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static LongBatcher batch(Consumer<long[]> delegate) {
+    return batch(DEFAULT_BATCH_SIZE, delegate);
+  }
+
+  /**
+   * Creates a {@link LongBatcher} which flushes to the supplied {@code delegate}
+   * every {@code batchSize} values. Each batch is a new array, exactly as long
+   * as the number of values in it, which the delegate may keep.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param batchSize The maximum number of values per batch. May be smaller for
+   *          the final flush on {@link #close()}.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static LongBatcher batch(int batchSize, Consumer<long[]> delegate) {
+    return new LongBatcher(batchSize, (values, length) -> delegate.accept(Arrays.copyOf(values, length)), delegate);
+  }
+
+  /**
+   * Creates a {@link LongBatcher} which flushes to the supplied {@code delegate}
+   * every {@code batchSize} values, passing the batcher's own buffer and the
+   * number of values in it. Nothing is allocated per batch, so the delegate
+   * <strong>must not</strong> modify the array or retain it beyond the call.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param batchSize The maximum number of values per batch. May be smaller for
+   *          the final flush on {@link #close()}.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static LongBatcher batchSlices(int batchSize, BatchConsumer delegate) {
+    return new LongBatcher(batchSize, delegate, delegate);
+  }
+
+  private LongBatcher(int batchSize, BatchConsumer delegate, Object closeable) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    this.buffer = new long[batchSize];
+    this.delegate = delegate;
+    this.closeable = closeable;
+    this.thread = new WeakReference<>(Thread.currentThread());
+  }
+
+  /**
+   * Receives the value and batches it. If the batch has reached the
+   * configured {@code batchSize}, the batch is flushed to the delegate
+   * consumer.
+   *
+   * @see java.util.function.LongConsumer#accept(long)
+   */
+  @Override
+  public void accept(long value) {
+    checkConcurrent();
+    if (size == buffer.length) {
+      flush();
+    }
+    buffer[size++] = value;
+  }
+
+  private void flush() {
+    delegate.accept(buffer, size);
+    size = 0;
+  }
+
+  /**
+   * Flushes anything remaining in the current batch.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    checkConcurrent();
+    if (size != 0) {
+      flush();
+    }
+    AutoCloseables.safeClose(closeable);
+  }
+
+  private void checkConcurrent() {
+    if (thread.get() == null || Thread.currentThread().getId() != thread.get().getId()) {
+      throw new ConcurrentModificationException(
+          "LongBatcher must not be shared between threads. Create instances on demand in threads as they are needed.");
+    }
+  }
+
+  /**
+   * Receives a batch of values as a slice of an array.
+   */
+  @FunctionalInterface
+  public interface BatchConsumer {
+
+    /**
+     * @param values The array containing the batch. Only the first
+     *          {@code length} elements are part of the batch.
+     * @param length The number of values in the batch.
+     */
+    void accept(long[] values, int length);
+  }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.google.common.base.Preconditions;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+import com.grahamcrockford.badgerutils.base.LogExceptions;
+
+/**
+ * Thread-safe batcher which groups items by key, so that every batch passed
+ * to the delegate contains items with the same key (tenant, table, Kafka
+ * partition etc.).
+ *
+ * <p>Each key is buffered and flushed independently, when it reaches
+ * {@code batchSize} items or, optionally, when its oldest item has been
+ * waiting for the maximum linger time (see {@link ConcurrentBatcher}). A
+ * global limit applies to the total number of items buffered across all
+ * keys. When it is exceeded, whole partitions are flushed early, starting
+ * with either the largest or the oldest, according to the
+ * {@link EvictionPolicy}. Choose {@link EvictionPolicy#OLDEST} for high key
+ * cardinalities; {@link EvictionPolicy#LARGEST} scans every partition on
+ * each eviction.</p>
+ *
+ * <p>Partitions only exist while they hold items. Once a partition has been
+ * flushed, it is discarded, so a high cardinality of keys which are each
+ * seen rarely does not leave a buffer behind for every key.</p>
+ *
+ * <p>Batches are flushed on whichever thread triggers the flush, so the
+ * delegate may be called concurrently, even for the same key, and
+ * <strong>must</strong> be thread safe.</p>
+ *
+ * @param <K> The key type. Keys must not be null, and must have consistent
+ *          {@code equals()} and {@code hashCode()} implementations.
+ * @param <T> The type processed.
+ */
+public final class PartitionedBatcher<K, T> implements Consumer<T>, AutoCloseable {
+
+  private final Function<? super T, ? extends K> keyFunction;
+  private final int batchSize;
+  private final long maxBuffered;
+  private final EvictionPolicy evictionPolicy;
+  private final long maxLingerNanos;
+  private final BiConsumer<? super K, Iterable<T>> delegate;
+
+  private final ConcurrentMap<K, Partition<K, T>> partitions = new ConcurrentHashMap<>();
+  private final CreationOrder<K, T> creationOrder = new CreationOrder<>();
+  private final AtomicLong buffered = new AtomicLong();
+  private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+  private volatile boolean closed;
+
+  /**
+   * Creates a {@link PartitionedBatcher} which flushes each key every
+   * {@code batchSize} items, and evicts the largest partitions first if more
+   * than {@code maxBuffered} items are buffered in total.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param keyFunction Extracts the partition key from an item.
+   * @param batchSize The maximum number of items per batch.
+   * @param maxBuffered The maximum number of items to buffer across all keys.
+   * @param delegate Receives the key and batch. Must be thread safe.
+   * @return The batcher.
+   */
+  public static <K, T> PartitionedBatcher<K, T> partition(Function<? super T, ? extends K> keyFunction, int batchSize,
+      long maxBuffered, BiConsumer<? super K, Iterable<T>> delegate) {
+    return new PartitionedBatcher<>(keyFunction, batchSize, maxBuffered, EvictionPolicy.LARGEST, 0, delegate);
+  }
+
+  /**
+   * Creates a {@link PartitionedBatcher} which flushes each key every
+   * {@code batchSize} items or when its oldest item has waited for
+   * {@code maxLinger}. If more than {@code maxBuffered} items are buffered in
+   * total, partitions are evicted according to {@code evictionPolicy}. Linger
+   * flushes run on the scheduler shared with {@link ConcurrentBatcher}.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param keyFunction Extracts the partition key from an item.
+   * @param batchSize The maximum number of items per batch.
+   * @param maxLinger The maximum time an item may be buffered before it is
+   *          flushed.
+   * @param unit The units of {@code maxLinger}.
+   * @param maxBuffered The maximum number of items to buffer across all keys.
+   * @param evictionPolicy Which partitions to flush first when
+   *          {@code maxBuffered} is exceeded.
+   * @param delegate Receives the key and batch. Must be thread safe.
+   * @return The batcher.
+   */
+  public static <K, T> PartitionedBatcher<K, T> partition(Function<? super T, ? extends K> keyFunction, int batchSize,
+      long maxLinger, TimeUnit unit, long maxBuffered, EvictionPolicy evictionPolicy,
+      BiConsumer<? super K, Iterable<T>> delegate) {
+    Preconditions.checkArgument(maxLinger > 0, "maxLinger must be positive");
+    return new PartitionedBatcher<>(keyFunction, batchSize, maxBuffered, evictionPolicy, unit.toNanos(maxLinger),
+        delegate);
+  }
+
+  private PartitionedBatcher(Function<? super T, ? extends K> keyFunction, int batchSize, long maxBuffered,
+      EvictionPolicy evictionPolicy, long maxLingerNanos, BiConsumer<? super K, Iterable<T>> delegate) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    Preconditions.checkArgument(maxBuffered > 0, "maxBuffered must be positive");
+    this.keyFunction = Preconditions.checkNotNull(keyFunction);
+    this.batchSize = batchSize;
+    this.maxBuffered = maxBuffered;
+    this.evictionPolicy = Preconditions.checkNotNull(evictionPolicy);
+    this.maxLingerNanos = maxLingerNanos;
+    this.delegate = Preconditions.checkNotNull(delegate);
+  }
+
+  /**
+   * Adds the item to the partition for its key, flushing the partition if it
+   * is full, and evicting other partitions if the global limit is exceeded.
+   *
+   * @throws IllegalStateException If the batcher has been closed.
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(T t) {
+    K key = Preconditions.checkNotNull(keyFunction.apply(t), "Null key");
+    List<T> full = null;
+    Partition<K, T> partition;
+    while (true) {
+      partition = partitions.computeIfAbsent(key, this::newPartition);
+      synchronized (partition) {
+        if (closed) {
+          throw new IllegalStateException("Batcher closed");
+        }
+        if (partition.retired) {
+          continue;
+        }
+        partition.add(t);
+        if (partition.items.size() == 1 && maxLingerNanos != 0) {
+          scheduleLinger(partition);
+        }
+        if (partition.items.size() >= batchSize) {
+          flushLock.readLock().lock();
+          full = retire(partition);
+        }
+        break;
+      }
+    }
+    buffered.incrementAndGet();
+    if (full != null) {
+      flush(key, full);
+    }
+    while (buffered.get() > maxBuffered && evictOne()) {
+      // Keep going
+    }
+  }
+
+  /**
+   * @return The number of keys which currently have items buffered.
+   */
+  public int partitionCount() {
+    return partitions.size();
+  }
+
+  /**
+   * @return The total number of items currently buffered.
+   */
+  public long bufferedCount() {
+    return buffered.get();
+  }
+
+  /**
+   * @return The number of partitions tracked for {@link EvictionPolicy#OLDEST}.
+   */
+  int creationOrderSize() {
+    return creationOrder.size();
+  }
+
+  private Partition<K, T> newPartition(K key) {
+    Partition<K, T> partition = new Partition<>(key);
+    if (evictionPolicy == EvictionPolicy.OLDEST) {
+      creationOrder.add(partition);
+    }
+    return partition;
+  }
+
+  /**
+   * Arranges for the partition to be flushed after the linger time. Nothing
+   * is waiting on the result, so failures are logged.
+   */
+  private void scheduleLinger(Partition<K, T> partition) {
+    BatchScheduler.shared().schedule(LogExceptions.wrap(() -> flushIfLive(partition)), maxLingerNanos,
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Flushes one partition, chosen according to the eviction policy.
+   *
+   * @return False if there was nothing to evict.
+   */
+  private boolean evictOne() {
+    if (evictionPolicy == EvictionPolicy.OLDEST) {
+      for (Partition<K, T> oldest = creationOrder.oldest(); oldest != null; oldest = creationOrder.oldest()) {
+        if (flushIfLive(oldest)) {
+          return true;
+        }
+        // Retired but not yet unlinked
+        creationOrder.remove(oldest);
+      }
+      return false;
+    }
+    Partition<K, T> largest = null;
+    for (Partition<K, T> partition : partitions.values()) {
+      if (largest == null || partition.size > largest.size) {
+        largest = partition;
+      }
+    }
+    return largest != null && flushIfLive(largest);
+  }
+
+  /**
+   * Flushes the partition unless it has already been flushed.
+   *
+   * @return True if flushed.
+   */
+  private boolean flushIfLive(Partition<K, T> partition) {
+    List<T> items;
+    synchronized (partition) {
+      if (partition.retired) {
+        return false;
+      }
+      flushLock.readLock().lock();
+      items = retire(partition);
+    }
+    flush(partition.key, items);
+    return true;
+  }
+
+  /**
+   * Marks the partition as flushed and removes it from the map (and the
+   * creation order), so that subsequent items for the same key start a new
+   * partition. Must be called while holding the partition's monitor.
+   */
+  private List<T> retire(Partition<K, T> partition) {
+    partition.retired = true;
+    partitions.remove(partition.key, partition);
+    if (evictionPolicy == EvictionPolicy.OLDEST) {
+      creationOrder.remove(partition);
+    }
+    return partition.items;
+  }
+
+  /**
+   * Passes a batch to the delegate, then releases the read side of the flush
+   * lock. The caller must acquire it before retiring the partition, so that
+   * {@link #close()} either finds the partition still in the map or waits for
+   * the flush to finish before closing the delegate.
+   */
+  private void flush(K key, List<T> items) {
+    try {
+      delegate.accept(key, Collections.unmodifiableList(items));
+    } finally {
+      flushLock.readLock().unlock();
+      buffered.addAndGet(-items.size());
+    }
+  }
+
+  /**
+   * Prevents further items being accepted and flushes all remaining
+   * partitions.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (Partition<K, T> partition : partitions.values()) {
+      flushIfLive(partition);
+    }
+    creationOrder.clear();
+    flushLock.writeLock().lock();
+    try {
+      AutoCloseables.safeClose(delegate);
+    } finally {
+      flushLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Which partitions to flush first when the global buffer limit is reached.
+   */
+  public enum EvictionPolicy {
+
+    /**
+     * Flush the partition with the most items. This produces the fullest
+     * batches, but finding it is a scan of all partitions, so each eviction
+     * costs time proportional to the number of keys buffered.
+     */
+    LARGEST,
+
+    /**
+     * Flush the partition whose first item arrived earliest. Constant time
+     * regardless of the number of keys, and keeps latency fair between keys.
+     */
+    OLDEST
+  }
+
+  /**
+   * The buffer for a single key. Items and the retired flag are guarded by
+   * the partition's monitor. The size is also published for unlocked reads
+   * when choosing which partition to evict.
+   */
+  private static final class Partition<K, T> {
+
+    private final K key;
+    private final List<T> items = new ArrayList<>();
+    private volatile int size;
+    private boolean retired;
+
+    // Guarded by the CreationOrder
+    private Partition<K, T> older;
+    private Partition<K, T> newer;
+    private boolean linked;
+
+    Partition(K key) {
+      this.key = key;
+    }
+
+    void add(T t) {
+      items.add(t);
+      size = items.size();
+    }
+  }
+
+  /**
+   * Partitions in the order they were created, for
+   * {@link EvictionPolicy#OLDEST}. A doubly linked list through the
+   * partitions themselves, so that retiring one from the middle is constant
+   * time.
+   */
+  private static final class CreationOrder<K, T> {
+
+    private Partition<K, T> oldest;
+    private Partition<K, T> newest;
+    private int size;
+
+    synchronized void add(Partition<K, T> partition) {
+      partition.older = newest;
+      if (newest == null) {
+        oldest = partition;
+      } else {
+        newest.newer = partition;
+      }
+      newest = partition;
+      partition.linked = true;
+      size++;
+    }
+
+    synchronized void remove(Partition<K, T> partition) {
+      if (!partition.linked) {
+        return;
+      }
+      if (partition.older == null) {
+        oldest = partition.newer;
+      } else {
+        partition.older.newer = partition.newer;
+      }
+      if (partition.newer == null) {
+        newest = partition.older;
+      } else {
+        partition.newer.older = partition.older;
+      }
+      partition.older = null;
+      partition.newer = null;
+      partition.linked = false;
+      size--;
+    }
+
+    synchronized Partition<K, T> oldest() {
+      return oldest;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized void clear() {
+      while (oldest != null) {
+        remove(oldest);
+      }
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+import com.grahamcrockford.badgerutils.base.CheckedExceptions;
+import com.grahamcrockford.badgerutils.base.CheckedExceptions.ThrowingConsumer;
+
+/**
+ * Batch consumer, for use as the delegate of a {@link Batcher} or similar,
+ * which retries failed batches with exponential backoff and isolates
+ * records which fail permanently.
+ *
+ * <p>Each batch is passed to the underlying writer. If it throws, the batch
+ * is retried up to {@code maxAttempts} times in total, doubling the delay
+ * between attempts from {@code initialBackoff} up to {@code maxBackoff}. If
+ * the batch still fails, it is split in half and each half tried once more,
+ * without backoff, recursively, until the failing records are isolated and
+ * passed, along with the exception, to the dead letter consumer. One bad
+ * record in a batch of 1000 therefore costs around twenty extra writes
+ * rather than the loss of the whole batch.</p>
+ *
+ * <p>By default, every failing half is bisected further, so a failure which
+ * has nothing to do with the records, such as an outage, ends with every
+ * record dead lettered. To avoid that, supply a {@code sameCause} predicate,
+ * which is called when both halves of a split fail. If it decides the two
+ * failures share a cause, bisection stops and the exception is rethrown,
+ * wrapped in a {@link RuntimeException} if checked. Any parts of the batch
+ * already written by then are not rolled back.</p>
+ *
+ * <p>The writer may throw checked exceptions. However, {@link Error}s and
+ * {@link InterruptedException} are never retried: they are propagated
+ * immediately, as described in
+ * {@link CheckedExceptions#runUnchecked(CheckedExceptions.ThrowingRunnable)}.
+ * The same applies if the thread is interrupted while backing off.</p>
+ *
+ * <p>Note that this retries on the calling thread, so blocks whatever is
+ * flushing the batch for the duration.</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class RetryingBatchConsumer<T> implements Consumer<Iterable<T>>, AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(RetryingBatchConsumer.class);
+
+  private final int maxAttempts;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final ThrowingConsumer<? super List<T>> writer;
+  private final BiConsumer<? super T, ? super Exception> deadLetter;
+  private final BiPredicate<? super Exception, ? super Exception> sameCause;
+
+  /**
+   * Creates a {@link RetryingBatchConsumer}.
+   *
+   * <p>If the {@code writer} or {@code deadLetter} consumers are
+   * {@link AutoCloseable}, they are closed when this is closed.</p>
+   *
+   * @param maxAttempts The maximum number of attempts to write each batch
+   *          before splitting it, including the first.
+   * @param initialBackoff The time to wait after the first failed attempt.
+   *          Doubled after each subsequent failure.
+   * @param maxBackoff The maximum time to wait between attempts.
+   * @param unit The units of {@code initialBackoff} and {@code maxBackoff}.
+   * @param writer Writes batches.
+   * @param deadLetter Receives individual records which could not be written
+   *          after all retries, along with the last exception thrown.
+   * @return The consumer.
+   */
+  public static <T> RetryingBatchConsumer<T> retrying(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit,
+      ThrowingConsumer<? super List<T>> writer, BiConsumer<? super T, ? super Exception> deadLetter) {
+    return retrying(maxAttempts, initialBackoff, maxBackoff, unit, writer, deadLetter, (a, b) -> false);
+  }
+
+  /**
+   * Creates a {@link RetryingBatchConsumer} which stops isolating records if
+   * both halves of a split batch fail with what {@code sameCause} decides
+   * is a common cause, and rethrows instead. For example:
+   *
+   * <pre><code>(a, b) -&gt; a instanceof SQLTransientConnectionException</code></pre>
+   *
+   * <p>If the {@code writer} or {@code deadLetter} consumers are
+   * {@link AutoCloseable}, they are closed when this is closed.</p>
+   *
+   * @param maxAttempts The maximum number of attempts to write each batch
+   *          before splitting it, including the first.
+   * @param initialBackoff The time to wait after the first failed attempt.
+   *          Doubled after each subsequent failure.
+   * @param maxBackoff The maximum time to wait between attempts.
+   * @param unit The units of {@code initialBackoff} and {@code maxBackoff}.
+   * @param writer Writes batches.
+   * @param deadLetter Receives individual records which could not be written
+   *          after all retries, along with the last exception thrown.
+   * @param sameCause Given the failures from the two halves of a split, true
+   *          if they are not caused by the records in either.
+   * @return The consumer.
+   */
+  public static <T> RetryingBatchConsumer<T> retrying(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit,
+      ThrowingConsumer<? super List<T>> writer, BiConsumer<? super T, ? super Exception> deadLetter,
+      BiPredicate<? super Exception, ? super Exception> sameCause) {
+    return new RetryingBatchConsumer<>(maxAttempts, unit.toNanos(initialBackoff), unit.toNanos(maxBackoff), writer, deadLetter,
+        sameCause);
+  }
+
+  private RetryingBatchConsumer(int maxAttempts, long initialBackoffNanos, long maxBackoffNanos,
+      ThrowingConsumer<? super List<T>> writer, BiConsumer<? super T, ? super Exception> deadLetter,
+      BiPredicate<? super Exception, ? super Exception> sameCause) {
+    Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+    Preconditions.checkArgument(initialBackoffNanos >= 0, "initialBackoff must not be negative");
+    Preconditions.checkArgument(maxBackoffNanos >= initialBackoffNanos, "maxBackoff must be at least initialBackoff");
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffNanos = initialBackoffNanos;
+    this.maxBackoffNanos = maxBackoffNanos;
+    this.writer = Preconditions.checkNotNull(writer);
+    this.deadLetter = Preconditions.checkNotNull(deadLetter);
+    this.sameCause = Preconditions.checkNotNull(sameCause);
+  }
+
+  /**
+   * Writes the batch, retrying and isolating bad records as necessary.
+   *
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(Iterable<T> batch) {
+    deliver(batch instanceof List ? (List<T>) batch : Lists.newArrayList(batch));
+  }
+
+  private void deliver(List<T> items) {
+    if (items.isEmpty()) {
+      return;
+    }
+    Exception failure = attempt(items, maxAttempts);
+    if (failure != null) {
+      isolate(items, failure);
+    }
+  }
+
+  /**
+   * Dead letters a single failed record, or splits a failed batch and tries
+   * each half once.
+   */
+  private void isolate(List<T> items, Exception failure) {
+    if (items.size() == 1) {
+      deadLetter.accept(items.get(0), failure);
+      return;
+    }
+    int middle = items.size() / 2;
+    List<T> left = items.subList(0, middle);
+    List<T> right = items.subList(middle, items.size());
+    Exception leftFailure = attempt(left, 1);
+    Exception rightFailure = attempt(right, 1);
+    if (leftFailure != null && rightFailure != null && sameCause.test(leftFailure, rightFailure)) {
+      log.warn("Both halves of batch of {} failed with a common cause, giving up: {}", items.size(),
+          rightFailure.toString());
+      Throwables.throwIfUnchecked(rightFailure);
+      throw new RuntimeException(rightFailure);
+    }
+    if (leftFailure != null) {
+      isolate(left, leftFailure);
+    }
+    if (rightFailure != null) {
+      isolate(right, rightFailure);
+    }
+  }
+
+  /**
+   * Tries to write the items, with retries.
+   *
+   * @param attempts The maximum number of attempts, including the first.
+   * @return Null if successful, otherwise the last exception thrown.
+   */
+  private Exception attempt(List<T> items, int attempts) {
+    long backoffNanos = initialBackoffNanos;
+    for (int attempt = 1;; attempt++) {
+      try {
+        writer.accept(items);
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (Exception e) {
+        if (attempts == 1) {
+          return e;
+        }
+        if (attempt >= attempts) {
+          log.warn("Batch of {} failed after {} attempts: {}", items.size(), attempt, e.toString());
+          return e;
+        }
+        log.warn("Batch of {} failed (attempt {} of {}), retrying in {}ms: {}", items.size(), attempt, attempts,
+            TimeUnit.NANOSECONDS.toMillis(backoffNanos), e.toString());
+        long sleepNanos = backoffNanos;
+        CheckedExceptions.runUnchecked(() -> TimeUnit.NANOSECONDS.sleep(sleepNanos));
+        backoffNanos = Math.min(maxBackoffNanos, backoffNanos * 2);
+      } catch (Throwable t) {
+        Throwables.throwIfUnchecked(t);
+        throw new RuntimeException(t);
+      }
+    }
+  }
+
+  /**
+   * Closes the writer and dead letter consumer if they are {@link AutoCloseable}.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    try {
+      AutoCloseables.safeClose(writer);
+    } finally {
+      AutoCloseables.safeClose(deadLetter);
+    }
+  }
+}
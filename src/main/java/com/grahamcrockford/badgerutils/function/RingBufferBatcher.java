@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+import com.grahamcrockford.badgerutils.base.CheckedExceptions;
+import com.grahamcrockford.badgerutils.base.Failures;
+
+/**
+ * Thread safe alternative to {@link ConcurrentBatcher} for the case where
+ * many producer threads feed a single slow writer.
+ *
+ * <p>Items are published to a pre-allocated, bounded, lock-free
+ * multi-producer ring buffer. A dedicated consumer thread drains whatever is
+ * available, up to {@code batchSize} items at a time, and passes it to the
+ * delegate. Batching is therefore adaptive: when the delegate keeps up,
+ * batches are small and latency is low; under load, items pile up while the
+ * delegate is busy and batches grow towards {@code batchSize}.</p>
+ *
+ * <p>Producers never block on the delegate, only on a full buffer. How both
+ * sides wait is selected with a {@link WaitStrategy}.</p>
+ *
+ * <p>Null items are not supported.</p>
+ *
+ * <p>Failures thrown by the delegate do not stop the consumer thread. They
+ * are collected and rethrown by {@link #close()} (see {@link Failures}).</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class RingBufferBatcher<T> implements Consumer<T>, AutoCloseable {
+
+  /**
+   * How threads wait for the ring buffer: the consumer when it is empty, and
+   * producers when it is full.
+   */
+  public enum WaitStrategy {
+
+    /**
+     * Spin continuously. Lowest latency, but burns a whole core on the
+     * consumer thread even when idle. Only use where there are cores to
+     * spare. Producers waiting for space behave as for {@link #YIELD}, so
+     * that they can't starve the consumer.
+     */
+    BUSY_SPIN {
+      @Override
+      void idle(int attempt) {
+        // Spin
+      }
+    },
+
+    /**
+     * Spin briefly, then {@link Thread#yield()}. Low latency and gives way to
+     * other threads, but still uses CPU when idle.
+     */
+    YIELD {
+      @Override
+      void idle(int attempt) {
+        if (attempt > SPIN_TRIES) {
+          Thread.yield();
+        }
+      }
+    },
+
+    /**
+     * Spin briefly, then park. The consumer thread is woken by producers
+     * as soon as something is published. Uses almost no CPU when idle, at
+     * the cost of some wake-up latency.
+     */
+    PARK {
+      @Override
+      void idle(int attempt) {
+        if (attempt > SPIN_TRIES) {
+          LockSupport.parkNanos(PARK_NANOS);
+        }
+      }
+    };
+
+    abstract void idle(int attempt);
+  }
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setDaemon(true).setNameFormat("badgerutils-ring-batcher-%d").build();
+  private static final int SPIN_TRIES = 100;
+  private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long CLOSED = Long.MIN_VALUE;
+
+  private final AtomicReferenceArray<T> slots;
+  private final int mask;
+  private final int batchSize;
+  private final WaitStrategy waitStrategy;
+  private final WaitStrategy producerWaitStrategy;
+  private final Consumer<Iterable<T>> delegate;
+  private final Thread consumerThread;
+  private final Failures failures = new Failures();
+
+  /**
+   * The next sequence to be claimed by a producer, with the top bit set once
+   * closed.
+   */
+  private final AtomicLong claimed = new AtomicLong();
+
+  /**
+   * The next sequence to be read by the consumer. All earlier slots are
+   * free for reuse.
+   */
+  private final AtomicLong consumed = new AtomicLong();
+
+  private volatile boolean consumerParked;
+
+  /**
+   * Creates a {@link RingBufferBatcher} using {@link WaitStrategy#PARK},
+   * which starts a daemon thread to pass batches to the delegate.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param bufferSize The capacity of the ring buffer. Rounded up to a power
+   *          of two.
+   * @param batchSize The maximum number of items per batch.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> RingBufferBatcher<T> batch(int bufferSize, int batchSize, Consumer<Iterable<T>> delegate) {
+    return batch(bufferSize, batchSize, WaitStrategy.PARK, delegate);
+  }
+
+  /**
+   * Creates a {@link RingBufferBatcher}, which starts a daemon thread to pass
+   * batches to the delegate.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param bufferSize The capacity of the ring buffer. Rounded up to a power
+   *          of two.
+   * @param batchSize The maximum number of items per batch.
+   * @param waitStrategy How to wait when the buffer is empty or full.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> RingBufferBatcher<T> batch(int bufferSize, int batchSize, WaitStrategy waitStrategy,
+      Consumer<Iterable<T>> delegate) {
+    return new RingBufferBatcher<>(bufferSize, batchSize, waitStrategy, delegate);
+  }
+
+  private RingBufferBatcher(int bufferSize, int batchSize, WaitStrategy waitStrategy, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    int capacity = IntMath.ceilingPowerOfTwo(bufferSize);
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.mask = capacity - 1;
+    this.batchSize = batchSize;
+    this.waitStrategy = Preconditions.checkNotNull(waitStrategy);
+    this.producerWaitStrategy = waitStrategy == WaitStrategy.BUSY_SPIN ? WaitStrategy.YIELD : waitStrategy;
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.consumerThread = THREAD_FACTORY.newThread(this::drain);
+    this.consumerThread.start();
+  }
+
+  /**
+   * Publishes the item to the ring buffer, waiting for space if it is full.
+   *
+   * @throws IllegalStateException If closed.
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(T t) {
+    Preconditions.checkNotNull(t);
+    long sequence;
+    do {
+      sequence = claimed.get();
+      Preconditions.checkState((sequence & CLOSED) == 0, "Closed");
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    int attempt = 0;
+    while (sequence - consumed.get() > mask) {
+      producerWaitStrategy.idle(++attempt);
+    }
+    slots.lazySet(index(sequence), t);
+
+    if (consumerParked) {
+      LockSupport.unpark(consumerThread);
+    }
+  }
+
+  /**
+   * @return The approximate number of items waiting in the buffer.
+   */
+  public int size() {
+    return (int) Math.max(0, (claimed.get() & ~CLOSED) - consumed.get());
+  }
+
+  private int index(long sequence) {
+    return (int) sequence & mask;
+  }
+
+  private void drain() {
+    long next = 0;
+    int attempt = 0;
+    List<T> batch = new ArrayList<>(batchSize);
+    while (true) {
+      int index = index(next);
+      T t = slots.get(index);
+      if (t != null) {
+        slots.lazySet(index, null);
+        next++;
+        batch.add(t);
+        if (batch.size() < batchSize) {
+          continue;
+        }
+      }
+      if (!batch.isEmpty()) {
+        consumed.lazySet(next);
+        deliver(batch);
+        batch = new ArrayList<>(batchSize);
+        attempt = 0;
+        continue;
+      }
+      long limit = claimed.get();
+      if ((limit & CLOSED) != 0 && next == (limit & ~CLOSED)) {
+        return;
+      }
+      if (waitStrategy == WaitStrategy.PARK && ++attempt > SPIN_TRIES) {
+        // Only park if no producer has claimed a slot. Any that claims one
+        // after this check is guaranteed to see the flag and wake us.
+        consumerParked = true;
+        if ((claimed.get() & ~CLOSED) == next) {
+          LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+        }
+        consumerParked = false;
+      } else {
+        waitStrategy.idle(++attempt);
+      }
+    }
+  }
+
+  private void deliver(List<T> batch) {
+    try {
+      delegate.accept(Collections.unmodifiableList(batch));
+    } catch (Throwable t) {
+      failures.add(t);
+    }
+  }
+
+  /**
+   * Stops accepting items, waits for everything already published to be
+   * passed to the delegate, then stops the consumer thread. If the delegate
+   * failed on any batches, the failures are rethrown as described in
+   * {@link Failures}.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if ((sequence & CLOSED) != 0) {
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence | CLOSED));
+    LockSupport.unpark(consumerThread);
+    try {
+      CheckedExceptions.runUnchecked(consumerThread::join);
+    } finally {
+      AutoCloseables.safeClose(delegate);
+    }
+    failures.rethrow();
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ConcurrentModificationException;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+
+/**
+ * Variant of {@link Batcher} which serialises items as they arrive into a
+ * direct {@link ByteBuffer}, rather than holding them on the heap. Where
+ * batches contain many small objects, this keeps pending data out of the
+ * way of the garbage collector, and the delegate receives the batch already
+ * encoded, ready to write to a socket or file.
+ *
+ * <p>Each item is stored as its encoded length, as an {@code int}, followed
+ * by the bytes produced by the {@link Codec}. A batch is flushed when the
+ * next item would not fit in {@code maxBytes}. An item which on its own is
+ * larger than {@code maxBytes} is delivered in a batch of its own, from a
+ * heap buffer kept for the purpose and reused by later oversized items. Batches
+ * may optionally be compressed as a whole before delivery.</p>
+ *
+ * <p>The delegate is passed a read-only view of the buffer, which is reused
+ * for the next batch. Like {@link Batcher#recycling(int, Consumer)}, the
+ * delegate <strong>must not</strong> retain it after returning. Use
+ * {@link #decode(ByteBuffer, Codec, Consumer)} (after
+ * {@link Compression#decompress(ByteBuffer)} if compressed) to read the
+ * items back.</p>
+ *
+ * <p>As with {@link Batcher}, this class is not thread safe, and will
+ * aggressively throw {@link ConcurrentModificationException} if used across
+ * threads.</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class SerializedBatcher<T> implements Consumer<T>, AutoCloseable {
+
+  private final Codec<T> codec;
+  private final Compression compression;
+  private final BatchConsumer delegate;
+  private final ByteBuffer buffer;
+  private final WeakReference<Thread> thread;
+  private ByteBuffer oversized = ByteBuffer.allocate(0);
+  private int count;
+
+  /**
+   * Creates a {@link SerializedBatcher} without compression.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param maxBytes The size of the buffer, and so the maximum size of a batch
+   *          (unless a single item is larger).
+   * @param codec Converts items to bytes.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> SerializedBatcher<T> serialize(int maxBytes, Codec<T> codec, BatchConsumer delegate) {
+    return new SerializedBatcher<>(maxBytes, codec, null, delegate);
+  }
+
+  /**
+   * Creates a {@link SerializedBatcher} which compresses each batch before
+   * passing it to the delegate.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when the batcher is closed.</p>
+   *
+   * @param maxBytes The size of the buffer, and so the maximum uncompressed
+   *          size of a batch (unless a single item is larger).
+   * @param codec Converts items to bytes.
+   * @param compression Compresses each batch. Should not be shared, and is
+   *          closed when the batcher is closed.
+   * @param delegate The delegate consumer.
+   * @return The batcher.
+   */
+  public static <T> SerializedBatcher<T> serialize(int maxBytes, Codec<T> codec, Compression compression,
+      BatchConsumer delegate) {
+    return new SerializedBatcher<>(maxBytes, codec, Preconditions.checkNotNull(compression), delegate);
+  }
+
+  private SerializedBatcher(int maxBytes, Codec<T> codec, Compression compression, BatchConsumer delegate) {
+    Preconditions.checkArgument(maxBytes > Integer.BYTES, "maxBytes too small");
+    this.codec = Preconditions.checkNotNull(codec);
+    this.compression = compression;
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.buffer = ByteBuffer.allocateDirect(maxBytes);
+    this.thread = new WeakReference<>(Thread.currentThread());
+  }
+
+  /**
+   * Encodes the item into the buffer, first flushing the batch to the
+   * delegate if the item won't fit.
+   *
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(T t) {
+    checkConcurrent();
+    byte[] bytes = codec.encode(t);
+    int recordBytes = Integer.BYTES + bytes.length;
+    if (recordBytes > buffer.remaining() && count != 0) {
+      flush();
+    }
+    if (recordBytes > buffer.capacity()) {
+      if (oversized.capacity() < recordBytes) {
+        oversized = ByteBuffer.allocate(recordBytes);
+      }
+      oversized.clear();
+      oversized.putInt(bytes.length).put(bytes).flip();
+      deliver(oversized, 1);
+      return;
+    }
+    buffer.putInt(bytes.length).put(bytes);
+    count++;
+  }
+
+  /**
+   * @return The number of encoded bytes waiting to be flushed.
+   */
+  public int bufferedBytes() {
+    return buffer.position();
+  }
+
+  private void flush() {
+    buffer.flip();
+    try {
+      deliver(buffer, count);
+    } finally {
+      buffer.clear();
+      count = 0;
+    }
+  }
+
+  private void deliver(ByteBuffer batch, int items) {
+    ByteBuffer view = batch.asReadOnlyBuffer();
+    delegate.accept(compression == null ? view : compression.compress(view), items);
+  }
+
+  /**
+   * Decodes an uncompressed batch produced by a {@link SerializedBatcher},
+   * passing each item to the consumer in order.
+   *
+   * @param batch The batch, between its position and limit. Not modified.
+   * @param codec Converts bytes back to items.
+   * @param consumer Receives the items.
+   * @throws IllegalArgumentException If the batch is corrupt.
+   */
+  public static <T> void decode(ByteBuffer batch, Codec<T> codec, Consumer<? super T> consumer) {
+    ByteBuffer source = batch.duplicate();
+    while (source.hasRemaining()) {
+      Preconditions.checkArgument(source.remaining() >= Integer.BYTES, "Truncated batch");
+      int length = source.getInt();
+      Preconditions.checkArgument(length >= 0 && length <= source.remaining(), "Corrupt length %s", length);
+      ByteBuffer item = source.slice();
+      item.limit(length);
+      consumer.accept(codec.decode(item.asReadOnlyBuffer()));
+      source.position(source.position() + length);
+    }
+  }
+
+  /**
+   * Flushes anything remaining in the current batch, then closes the
+   * compression, if any.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    checkConcurrent();
+    try {
+      if (count != 0) {
+        flush();
+      }
+    } finally {
+      try {
+        if (compression != null) {
+          compression.close();
+        }
+      } finally {
+        AutoCloseables.safeClose(delegate);
+      }
+    }
+  }
+
+  private void checkConcurrent() {
+    if (thread.get() == null || Thread.currentThread().getId() != thread.get().getId()) {
+      throw new ConcurrentModificationException(
+          "SerializedBatcher must not be shared between threads. Create instances on demand in threads as they are needed.");
+    }
+  }
+
+  /**
+   * Receives a batch of encoded items.
+   */
+  @FunctionalInterface
+  public interface BatchConsumer {
+
+    /**
+     * @param batch A read-only view of the encoded (and possibly compressed)
+     *          batch, between its position and limit. Only valid until this
+     *          method returns.
+     * @param count The number of items in the batch.
+     */
+    void accept(ByteBuffer batch, int count);
+  }
+}
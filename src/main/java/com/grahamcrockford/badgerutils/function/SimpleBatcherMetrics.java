@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.grahamcrockford.badgerutils.base.Histogram;
+
+/**
+ * Self-contained {@link BatcherMetrics} implementation, which keeps counts
+ * and histograms in memory for you to read or log periodically. Thread safe
+ * and lock-free, so may be shared between batchers.
+ */
+public final class SimpleBatcherMetrics implements BatcherMetrics {
+
+  private final LongAdder itemsAccepted = new LongAdder();
+  private final Map<FlushCause, LongAdder> flushes = new EnumMap<>(FlushCause.class);
+  private final DoubleAdder fillRatioTotal = new DoubleAdder();
+  private final Histogram batchSizes = new Histogram();
+  private final Histogram delegateNanos = new Histogram();
+
+  public SimpleBatcherMetrics() {
+    for (FlushCause cause : FlushCause.values()) {
+      flushes.put(cause, new LongAdder());
+    }
+  }
+
+  @Override
+  public void itemAccepted() {
+    itemsAccepted.increment();
+  }
+
+  @Override
+  public void batchFlushed(int size, int batchSize, FlushCause cause, long delegateNanos) {
+    flushes.get(cause).increment();
+    fillRatioTotal.add((double) size / batchSize);
+    batchSizes.record(size);
+    this.delegateNanos.record(Math.max(0, delegateNanos));
+  }
+
+  /**
+   * @return The number of items accepted.
+   */
+  public long itemsAccepted() {
+    return itemsAccepted.sum();
+  }
+
+  /**
+   * @return The total number of batches flushed.
+   */
+  public long batchesFlushed() {
+    return batchSizes.count();
+  }
+
+  /**
+   * @param cause The flush cause.
+   * @return The number of batches flushed for the specified reason.
+   */
+  public long batchesFlushed(FlushCause cause) {
+    return flushes.get(cause).sum();
+  }
+
+  /**
+   * @return The mean ratio of batch size to maximum batch size, between 0 and
+   *         1, or zero if nothing has been flushed.
+   */
+  public double meanFillRatio() {
+    long batches = batchesFlushed();
+    return batches == 0 ? 0 : fillRatioTotal.sum() / batches;
+  }
+
+  /**
+   * @return The distribution of batch sizes.
+   */
+  public Histogram batchSizes() {
+    return batchSizes;
+  }
+
+  /**
+   * @return The distribution of time spent in the delegate per batch, in
+   *         nanoseconds.
+   */
+  public Histogram delegateNanos() {
+    return delegateNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("items=%d, batches=%d %s, fill=%.2f, sizes=[%s], delegateNanos=[%s]",
+        itemsAccepted(), batchesFlushed(), flushes, meanFillRatio(), batchSizes, delegateNanos);
+  }
+}
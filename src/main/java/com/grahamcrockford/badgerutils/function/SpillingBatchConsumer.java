@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.grahamcrockford.badgerutils.base.AutoCloseables;
+import com.grahamcrockford.badgerutils.base.CheckedExceptions;
+import com.grahamcrockford.badgerutils.base.Failures;
+
+/**
+ * Batch consumer, for use as the delegate of a {@link Batcher} or similar,
+ * which decouples the producer from a slow delegate without letting
+ * pending batches grow the heap.
+ *
+ * <p>Batches are queued and passed to the delegate, in order, on a
+ * dedicated thread. Up to {@code maxPendingBatches} are held in memory. Once
+ * that many are waiting, further batches are serialised (using a
+ * {@link Codec}) to an append-only spill file, written through
+ * memory-mapped {@link MappedByteBuffer}s, and read back in order once the
+ * delegate catches up. When the spill file has been drained completely, it
+ * is reused from the start. This allows the producer to carry on at full
+ * speed through a downstream brownout lasting as long as there is disk to
+ * absorb it.</p>
+ *
+ * <p>Batches are serialised on the producing thread before the lock is
+ * taken, so a slow {@link Codec} holds up only that producer. If an item
+ * can't be decoded when read back, that item is dropped and the failure
+ * collected; the rest of its batch, and the rest of the spill, are still
+ * delivered.</p>
+ *
+ * <p>The spill file is temporary: anything in it is lost if the JVM dies.
+ * Regions of it are mapped 16MB at a time. Java
+ * offers no way to unmap a region explicitly, so regions which have been
+ * written or read past are only unmapped once they are garbage collected;
+ * until then they continue to use address space, though not heap.</p>
+ *
+ * <p>Failures thrown by the delegate do not stop the drain. They are
+ * collected and rethrown by {@link #close()} (see {@link Failures}).</p>
+ *
+ * @param <T> The type processed.
+ */
+public final class SpillingBatchConsumer<T> implements Consumer<Iterable<T>>, AutoCloseable {
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setDaemon(true).setNameFormat("badgerutils-spill-drain-%d").build();
+  private static final int REGION_BYTES = 16 * 1024 * 1024;
+
+  private final int maxPendingBatches;
+  private final Codec<T> codec;
+  private final Consumer<Iterable<T>> delegate;
+  private final Path spillPath;
+  private final FileChannel channel;
+  private final Thread drainThread;
+  private final Failures failures = new Failures();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition drained = lock.newCondition();
+
+  // Guarded by lock
+  private final Queue<List<T>> inMemory = new ArrayDeque<>();
+  private long writePosition;
+  private long readPosition;
+  private long writeRegionStart;
+  private MappedByteBuffer writeRegion;
+  private long readRegionStart;
+  private MappedByteBuffer readRegion;
+  private boolean delivering;
+  private boolean closed;
+
+  /**
+   * Creates a {@link SpillingBatchConsumer}, which starts a daemon thread to
+   * pass batches to the delegate.
+   *
+   * <p>If the {@code delegate} is {@link AutoCloseable}, it is automatically
+   * closed when this is closed.</p>
+   *
+   * @param maxPendingBatches The number of batches to hold in memory before
+   *          spilling to disk.
+   * @param directory The directory in which to create the spill file.
+   * @param codec Converts items to and from bytes.
+   * @param delegate The delegate consumer.
+   * @return The consumer.
+   * @throws UncheckedIOException If the spill file could not be created.
+   */
+  public static <T> SpillingBatchConsumer<T> spilling(int maxPendingBatches, Path directory, Codec<T> codec,
+      Consumer<Iterable<T>> delegate) {
+    return new SpillingBatchConsumer<>(maxPendingBatches, directory, codec, delegate);
+  }
+
+  private SpillingBatchConsumer(int maxPendingBatches, Path directory, Codec<T> codec, Consumer<Iterable<T>> delegate) {
+    Preconditions.checkArgument(maxPendingBatches > 0, "maxPendingBatches must be positive");
+    this.maxPendingBatches = maxPendingBatches;
+    this.codec = Preconditions.checkNotNull(codec);
+    this.delegate = Preconditions.checkNotNull(delegate);
+    try {
+      this.spillPath = Files.createTempFile(directory, "batches-", ".spill");
+      this.channel = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+          StandardOpenOption.DELETE_ON_CLOSE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.drainThread = THREAD_FACTORY.newThread(this::drain);
+    this.drainThread.start();
+  }
+
+  /**
+   * Queues the batch for delivery, spilling it to disk if too many batches
+   * are already waiting. Does not block on the delegate.
+   *
+   * @throws IllegalStateException If closed.
+   * @throws UncheckedIOException If the batch could not be spilled.
+   * @see java.util.function.Consumer#accept(java.lang.Object)
+   */
+  @Override
+  public void accept(Iterable<T> batch) {
+    List<T> copy = Lists.newArrayList(batch);
+    ByteBuffer record = null;
+    while (true) {
+      lock.lock();
+      try {
+        Preconditions.checkState(!closed, "Closed");
+        if (readPosition == writePosition && inMemory.size() < maxPendingBatches) {
+          inMemory.add(copy);
+          notEmpty.signal();
+          return;
+        }
+        if (record != null) {
+          spill(record);
+          notEmpty.signal();
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+      // Needs spilling. Serialise without holding the lock, then check again
+      record = encode(copy);
+    }
+  }
+
+  /**
+   * @return The number of batches waiting in memory.
+   */
+  public int pendingInMemory() {
+    lock.lock();
+    try {
+      return inMemory.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of bytes of spilled batches waiting to be read back.
+   */
+  public long spilledBytes() {
+    lock.lock();
+    try {
+      return writePosition - readPosition;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Serialises a batch as a spill record: its length, the item count, then
+   * each item prefixed by its length.
+   */
+  private ByteBuffer encode(List<T> batch) {
+    List<byte[]> encoded = new ArrayList<>(batch.size());
+    int length = Integer.BYTES;
+    for (T t : batch) {
+      byte[] bytes = codec.encode(t);
+      encoded.add(bytes);
+      length = Math.addExact(length, Integer.BYTES + bytes.length);
+    }
+    ByteBuffer record = ByteBuffer.allocate(Math.addExact(Integer.BYTES, length));
+    record.putInt(length);
+    record.putInt(batch.size());
+    for (byte[] bytes : encoded) {
+      record.putInt(bytes.length);
+      record.put(bytes);
+    }
+    record.flip();
+    return record;
+  }
+
+  private void spill(ByteBuffer record) {
+    int recordLength = record.remaining();
+    if (writeRegion == null || writePosition + recordLength > writeRegionStart + writeRegion.capacity()) {
+      writeRegionStart = writePosition;
+      writeRegion = map(MapMode.READ_WRITE, writePosition, Math.max(REGION_BYTES, recordLength));
+    }
+    writeRegion.position((int) (writePosition - writeRegionStart));
+    writeRegion.put(record);
+    writePosition += recordLength;
+  }
+
+  private List<T> unspill() {
+    ByteBuffer header = readable(Integer.BYTES);
+    int length = header.getInt();
+    ByteBuffer record = readable(Integer.BYTES + length);
+    record.position(record.position() + Integer.BYTES);
+    readPosition += Integer.BYTES + length;
+    if (readPosition == writePosition) {
+      discardSpill();
+    }
+    int count = record.getInt();
+    List<T> batch = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int itemLength = record.getInt();
+      ByteBuffer item = record.slice();
+      item.limit(itemLength);
+      try {
+        batch.add(codec.decode(item.asReadOnlyBuffer()));
+      } catch (RuntimeException e) {
+        // The length prefix still tells us where the next item is
+        failures.add(e);
+      }
+      record.position(record.position() + itemLength);
+    }
+    return batch;
+  }
+
+  /**
+   * Resets the spill file so that it is written from the start again.
+   */
+  private void discardSpill() {
+    readPosition = 0;
+    writePosition = 0;
+    writeRegion = null;
+    readRegion = null;
+  }
+
+  /**
+   * Returns a view of the spill file starting at the read position with at
+   * least {@code bytes} remaining, mapping a new read region if necessary.
+   */
+  private ByteBuffer readable(int bytes) {
+    if (readRegion == null || readPosition < readRegionStart
+        || readPosition + bytes > readRegionStart + readRegion.capacity()) {
+      readRegionStart = readPosition;
+      readRegion = map(MapMode.READ_ONLY, readPosition, Math.max(bytes, Math.min(REGION_BYTES, writePosition - readPosition)));
+    }
+    ByteBuffer view = readRegion.duplicate();
+    view.position((int) (readPosition - readRegionStart));
+    return view;
+  }
+
+  private MappedByteBuffer map(MapMode mode, long position, long size) {
+    try {
+      return channel.map(mode, position, size);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      List<T> batch;
+      lock.lock();
+      try {
+        delivering = false;
+        while (inMemory.isEmpty() && readPosition == writePosition) {
+          drained.signalAll();
+          if (closed) {
+            return;
+          }
+          notEmpty.awaitUninterruptibly();
+        }
+        batch = inMemory.isEmpty() ? unspill() : inMemory.poll();
+        delivering = true;
+      } catch (RuntimeException e) {
+        // We can't safely find the next record, so give up on the rest
+        failures.add(e);
+        discardSpill();
+        continue;
+      } finally {
+        lock.unlock();
+      }
+      try {
+        delegate.accept(Collections.unmodifiableList(batch));
+      } catch (Throwable t) {
+        failures.add(t);
+      }
+    }
+  }
+
+  /**
+   * Waits for all queued and spilled batches to be delivered, then deletes
+   * the spill file. If the delegate failed on any batches, the failures are
+   * rethrown as described in {@link Failures}.
+   *
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notEmpty.signal();
+      while (delivering || !inMemory.isEmpty() || readPosition != writePosition) {
+        drained.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+    CheckedExceptions.runUnchecked(drainThread::join);
+    try {
+      writeRegion = null;
+      readRegion = null;
+      CheckedExceptions.runUnchecked(channel::close);
+    } finally {
+      AutoCloseables.safeClose(delegate);
+    }
+    failures.rethrow();
+  }
+}
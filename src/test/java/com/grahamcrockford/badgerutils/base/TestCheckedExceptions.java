@@ -17,6 +17,7 @@
 package com.grahamcrockford.badgerutils.base;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doThrow;
@@ -24,8 +25,10 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.sql.SQLException;
 import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -249,6 +252,87 @@ public class TestCheckedExceptions {
     fail("No exception");
   }
 
+  /**
+   * Make sure that the stackless variants wrap checked exceptions without
+   * a stack trace of their own, but keep the cause's.
+   */
+  @Test
+  public void testStackless() {
+    try {
+      CheckedExceptions.runStackless(() -> {
+        throw new IOException("Boo");
+      });
+      fail("No exception");
+    } catch (UncheckedException e) {
+      assertEquals(0, e.getStackTrace().length);
+      assertEquals(IOException.class, e.getCause().getClass());
+      assertTrue(e.getCause().getStackTrace().length > 0);
+      assertEquals("java.io.IOException: Boo", e.getMessage());
+    }
+    assertEquals(VALUE, CheckedExceptions.callStackless(() -> VALUE).intValue());
+    try {
+      CheckedExceptions.callStackless(() -> {
+        throw new IllegalStateException();
+      });
+      fail("No exception");
+    } catch (IllegalStateException e) {
+      // Unchecked exceptions pass through untouched
+    }
+  }
+
+  /**
+   * The stackless variants preserve interrupts in the same way.
+   */
+  @Test
+  public void testStacklessIsInterrupted() {
+    try {
+      CheckedExceptions.runStackless(() -> {
+        throw new InterruptedException();
+      });
+      fail("No exception");
+    } catch (UncheckedException e) {
+      assertTrue(Thread.interrupted());
+      assertEquals(InterruptedException.class, e.getCause().getClass());
+    }
+  }
+
+  /**
+   * Make sure that wrapped consumers rethrow checked exceptions wrapped, and
+   * unchecked exceptions as they are.
+   */
+  @Test
+  public void testUncheckConsumer() {
+    Consumer<String> consumer = CheckedExceptions.uncheck((String s) -> {
+      if (s.isEmpty()) {
+        throw new IllegalArgumentException();
+      }
+      throw new IOException(s);
+    });
+    try {
+      consumer.accept("Boo");
+      fail("No exception");
+    } catch (RuntimeException e) {
+      assertEquals(IOException.class, e.getCause().getClass());
+    }
+    try {
+      consumer.accept("");
+      fail("No exception");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * The wrappers are plain lambdas, so that they stay cheap to create and
+   * inline.
+   */
+  @Test
+  public void testWrappersNotSerializable() {
+    assertFalse(CheckedExceptions.uncheck(mock::doSomethingWithCheckedException) instanceof Serializable);
+    assertFalse(CheckedExceptions.uncheck(mock::returnSomethingWithCheckedException) instanceof Serializable);
+    assertFalse(CheckedExceptions.uncheck((String s) -> { }) instanceof Serializable);
+  }
+
   private interface Dummy {
     public void doSomething();
     public void doSomethingWithCheckedException() throws IOException;
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Failures}.
+ */
+public class TestFailures {
+
+  @Test
+  public void testNothingToRethrow() {
+    new Failures().rethrow();
+  }
+
+  @Test
+  public void testFirstWithRestSuppressed() {
+    Failures failures = new Failures();
+    IllegalStateException first = new IllegalStateException("1");
+    IllegalArgumentException second = new IllegalArgumentException("2");
+    failures.add(first);
+    failures.add(second);
+    failures.add(first);
+    try {
+      failures.rethrow();
+      fail("No exception");
+    } catch (IllegalStateException e) {
+      assertSame(first, e);
+      assertArrayEquals(new Throwable[] { second }, e.getSuppressed());
+    }
+    failures.rethrow();
+  }
+
+  @Test
+  public void testCheckedWrapped() {
+    Failures failures = new Failures();
+    IOException checked = new IOException();
+    failures.add(checked);
+    try {
+      failures.rethrow();
+      fail("No exception");
+    } catch (RuntimeException e) {
+      assertSame(checked, e.getCause());
+    }
+  }
+
+  @Test
+  public void testErrorRethrown() {
+    Failures failures = new Failures();
+    AssertionError error = new AssertionError();
+    failures.add(error);
+    try {
+      failures.rethrow();
+      fail("No exception");
+    } catch (AssertionError e) {
+      assertSame(error, e);
+    }
+  }
+}
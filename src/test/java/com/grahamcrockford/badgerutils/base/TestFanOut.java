@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.grahamcrockford.badgerutils.base.CheckedExceptions.ThrowingRunnable;
+
+/**
+ * Tests for {@link FanOut}.
+ */
+public class TestFanOut {
+
+  @Test
+  public void testResultsInOrder() {
+    List<Callable<Integer>> tasks = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      int value = i;
+      tasks.add(() -> {
+        Thread.sleep(1);
+        return value;
+      });
+    }
+    List<Integer> results = FanOut.callAll(tasks);
+    assertEquals(1000, results.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, results.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testRunAll() {
+    AtomicInteger count = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      FanOut.runAll(executor, ImmutableList.of(count::incrementAndGet, count::incrementAndGet));
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(2, count.get());
+  }
+
+  @Test
+  public void testCheckedExceptionWrapped() {
+    try {
+      FanOut.runAll(ImmutableList.<ThrowingRunnable>of(() -> {
+        throw new IOException("Boo");
+      }));
+      fail("No exception");
+    } catch (RuntimeException e) {
+      assertEquals(IOException.class, e.getCause().getClass());
+    }
+  }
+
+  /**
+   * A failure interrupts running tasks and waits for them to stop before
+   * rethrowing. The interrupts are not reported as failures.
+   */
+  @Test
+  public void testFirstFailureCancelsRunning() {
+    AtomicInteger interrupted = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(3);
+    List<ThrowingRunnable> tasks = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      tasks.add(() -> {
+        started.countDown();
+        try {
+          Thread.sleep(10_000);
+        } catch (InterruptedException e) {
+          interrupted.incrementAndGet();
+          throw e;
+        }
+      });
+    }
+    tasks.add(() -> {
+      started.await();
+      throw new IllegalStateException("Boo");
+    });
+    long start = System.nanoTime();
+    try {
+      FanOut.runAll(tasks);
+      fail("No exception");
+    } catch (IllegalStateException e) {
+      assertEquals("Boo", e.getMessage());
+      assertEquals(0, e.getSuppressed().length);
+    }
+    assertEquals(3, interrupted.get());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+  }
+
+  /**
+   * Tasks which haven't started when one fails are skipped.
+   */
+  @Test
+  public void testFirstFailureSkipsPending() {
+    AtomicInteger ran = new AtomicInteger();
+    try {
+      FanOut.runAll(Runnable::run, ImmutableList.<ThrowingRunnable>of(
+          ran::incrementAndGet,
+          () -> {
+            throw new IllegalStateException();
+          },
+          ran::incrementAndGet));
+      fail("No exception");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    assertEquals(1, ran.get());
+    assertFalse(Thread.currentThread().isInterrupted());
+  }
+}
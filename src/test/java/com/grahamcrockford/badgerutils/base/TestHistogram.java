@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Histogram}.
+ */
+public class TestHistogram {
+
+  private final Histogram histogram = new Histogram();
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.percentile(99));
+    assertEquals(0, histogram.mean(), 0);
+  }
+
+  @Test
+  public void testSmallValuesExact() {
+    for (int i = 0; i < 8; i++) {
+      histogram.record(i);
+    }
+    assertEquals(8, histogram.count());
+    assertEquals(28, histogram.sum());
+    assertEquals(7, histogram.max());
+    assertEquals(3, histogram.percentile(50));
+    assertEquals(7, histogram.percentile(100));
+  }
+
+  @Test
+  public void testPercentileAccuracy() {
+    for (long i = 1; i <= 100_000; i++) {
+      histogram.record(i * 1000);
+    }
+    for (double p : new double[] { 1, 50, 90, 99, 99.9 }) {
+      long expected = (long) (p * 1000 * 1000);
+      long actual = histogram.percentile(p);
+      assertTrue(p + ": " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+    assertEquals(100_000_000, histogram.percentile(100));
+  }
+
+  @Test
+  public void testLargeValues() {
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, histogram.percentile(50));
+  }
+
+  @Test
+  public void testReset() {
+    histogram.record(5);
+    histogram.reset();
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.max());
+    assertEquals(0, histogram.percentile(50));
+  }
+}
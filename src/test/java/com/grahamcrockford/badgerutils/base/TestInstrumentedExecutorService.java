@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link InstrumentedExecutorService}.
+ */
+public class TestInstrumentedExecutorService {
+
+  private final InstrumentedExecutorService executor = InstrumentedExecutorService.instrument(
+      Executors.newSingleThreadExecutor(), 50, TimeUnit.MILLISECONDS, 2);
+
+  @After
+  public void after() throws InterruptedException {
+    executor.shutdownNow();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testCountsAndTimings() throws Exception {
+    executor.execute(() -> { });
+    executor.submit(() -> { }).get();
+    assertEquals("x", executor.submit(() -> "x").get());
+    assertEquals(3, executor.completed());
+    assertEquals(0, executor.failed());
+    assertEquals(0, executor.running());
+    assertEquals(0, executor.queued());
+    assertEquals(3, executor.queueWaitNanos().count());
+    assertEquals(3, executor.runNanos().count());
+    assertTrue(executor.slowTasks().isEmpty());
+  }
+
+  @Test
+  public void testQueued() throws Exception {
+    CountDownLatch block = new CountDownLatch(1);
+    CountDownLatch running = new CountDownLatch(1);
+    executor.execute(() -> {
+      running.countDown();
+      CheckedExceptions.runUnchecked(block::await);
+    });
+    Future<?> second = executor.submit(() -> { });
+    running.await();
+    assertEquals(1, executor.running());
+    assertEquals(1, executor.queued());
+    block.countDown();
+    second.get();
+    assertEquals(0, executor.queued());
+  }
+
+  @Test
+  public void testFailures() throws InterruptedException {
+    Future<?> runnable = executor.submit((Runnable) () -> {
+      throw new IllegalStateException("Boo");
+    });
+    Future<?> callable = executor.submit(() -> {
+      throw new IOException("Boo");
+    });
+    try {
+      runnable.get();
+      fail("No exception");
+    } catch (ExecutionException e) {
+      assertEquals(IllegalStateException.class, e.getCause().getClass());
+    }
+    try {
+      callable.get();
+      fail("No exception");
+    } catch (ExecutionException e) {
+      assertEquals(IOException.class, e.getCause().getClass());
+    }
+    assertEquals(2, executor.failed());
+    assertEquals(0, executor.interrupted());
+  }
+
+  @Test
+  public void testInterrupts() throws Exception {
+    Future<?> runnable = executor.submit((Runnable) () -> CheckedExceptions.runUnchecked(() -> {
+      throw new InterruptedException();
+    }));
+    Future<?> callable = executor.submit(() -> {
+      throw new InterruptedException();
+    });
+    try {
+      runnable.get();
+      fail("No exception");
+    } catch (ExecutionException e) {
+      // Expected
+    }
+    try {
+      callable.get();
+      fail("No exception");
+    } catch (ExecutionException e) {
+      // Expected
+    }
+    assertEquals(2, executor.interrupted());
+  }
+
+  @Test
+  public void testSlowTasksSampled() throws Exception {
+    for (String name : ImmutableList.of("one", "two", "three")) {
+      executor.submit(new Named(name, 60)).get();
+    }
+    executor.submit(new Named("fast", 0)).get();
+    List<InstrumentedExecutorService.SlowTask> slow = executor.slowTasks();
+    assertEquals(2, slow.size());
+    assertEquals("two", slow.get(0).task());
+    assertEquals("three", slow.get(1).task());
+    assertTrue(slow.get(1).runNanos() >= TimeUnit.MILLISECONDS.toNanos(60));
+  }
+
+  @Test
+  public void testShutdownNowReturnsOriginalTasks() throws InterruptedException {
+    CountDownLatch running = new CountDownLatch(1);
+    executor.execute(() -> {
+      running.countDown();
+      try {
+        Thread.sleep(10_000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Runnable pending = new Named("pending", 0);
+    executor.execute(pending);
+    running.await();
+    assertEquals(ImmutableList.of(pending), executor.shutdownNow());
+  }
+
+  @Test
+  public void testShutdownNowReturnsSubmittedFutures() throws InterruptedException {
+    CountDownLatch running = new CountDownLatch(1);
+    executor.execute(() -> {
+      running.countDown();
+      try {
+        Thread.sleep(10_000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Future<?> pending = executor.submit(new Named("pending", 0));
+    Future<String> pendingCallable = executor.submit(() -> "x");
+    running.await();
+    assertEquals(2, executor.queued());
+    assertEquals(ImmutableList.of(pending, pendingCallable), executor.shutdownNow());
+    assertEquals(0, executor.queued());
+  }
+
+  @Test
+  public void testCancelledNotQueued() throws Exception {
+    CountDownLatch block = new CountDownLatch(1);
+    CountDownLatch running = new CountDownLatch(1);
+    executor.execute(() -> {
+      running.countDown();
+      CheckedExceptions.runUnchecked(block::await);
+    });
+    Future<?> cancelled = executor.submit(new Named("cancelled", 0));
+    running.await();
+    assertEquals(1, executor.queued());
+    assertTrue(cancelled.cancel(false));
+    assertEquals(0, executor.queued());
+    block.countDown();
+    executor.submit(() -> { }).get();
+    assertEquals(0, executor.queued());
+    assertEquals(2, executor.completed());
+  }
+
+  @Test
+  public void testRejectedNotQueued() {
+    InstrumentedExecutorService shutDown = InstrumentedExecutorService.instrument(Executors.newSingleThreadExecutor());
+    shutDown.shutdown();
+    try {
+      shutDown.execute(() -> { });
+      fail("Not rejected");
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+    try {
+      shutDown.submit(() -> "x");
+      fail("Not rejected");
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+    assertEquals(0, shutDown.queued());
+  }
+
+  @Test
+  public void testInvokeAll() throws Exception {
+    List<Future<String>> results = executor.invokeAll(ImmutableList.of(() -> "a", () -> "b"));
+    assertEquals("a", results.get(0).get());
+    assertEquals("b", results.get(1).get());
+    assertEquals("c", executor.invokeAny(ImmutableList.of(() -> "c")));
+    assertEquals(3, executor.completed());
+    assertEquals(0, executor.queued());
+  }
+
+  private static final class Named implements Runnable {
+
+    private final String name;
+    private final long sleepMillis;
+
+    Named(String name, long sleepMillis) {
+      this.name = name;
+      this.sleepMillis = sleepMillis;
+    }
+
+    @Override
+    public void run() {
+      CheckedExceptions.runUnchecked(() -> Thread.sleep(sleepMillis));
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+}
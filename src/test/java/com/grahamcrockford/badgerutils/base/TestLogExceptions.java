@@ -22,10 +22,16 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 
+import java.io.FileNotFoundException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.After;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import com.google.common.base.Ticker;
 import com.grahamcrockford.badgerutils.base.LogExceptions.InterruptibleRunnable;
 
 import uk.org.lidalia.slf4jtest.TestLogger;
@@ -34,6 +40,7 @@ import uk.org.lidalia.slf4jtest.TestLoggerFactory;
 public class TestLogExceptions {
 
   private TestLogger logger = TestLoggerFactory.getTestLogger(LogExceptions.class);
+  private final FakeTicker ticker = new FakeTicker();
 
   /**
    * Base case. If no exceptions are thrown, no exceptions bubble up. Confirm
@@ -116,6 +123,139 @@ public class TestLogExceptions {
     fail("No exception");
   }
 
+  /**
+   * Identical exceptions are only logged once per interval.
+   */
+  @Test
+  public void testThrottleSuppressesIdentical() {
+    LogExceptions.Throttle throttle = LogExceptions.throttle(1, TimeUnit.HOURS);
+    runThrottled(throttle, this::failOne, 100);
+    assertEquals(1, logger.getLoggingEvents().size());
+    assertEquals("Caught exception", logger.getLoggingEvents().get(0).getMessage());
+    assertEquals(1, throttle.fingerprints());
+  }
+
+  /**
+   * Exceptions from different places are logged separately.
+   */
+  @Test
+  public void testThrottleDistinguishesOrigin() {
+    LogExceptions.Throttle throttle = LogExceptions.throttle(1, TimeUnit.HOURS);
+    for (int i = 0; i < 10; i++) {
+      runThrottled(throttle, this::failOne, 1);
+      runThrottled(throttle, this::failTwo, 1);
+    }
+    assertEquals(2, logger.getLoggingEvents().size());
+    assertEquals(2, throttle.fingerprints());
+  }
+
+  /**
+   * Stackless wrappers are told apart by their root cause.
+   */
+  @Test
+  public void testThrottleDistinguishesRootCause() {
+    LogExceptions.Throttle throttle = LogExceptions.throttle(1, TimeUnit.HOURS);
+    for (int i = 0; i < 10; i++) {
+      runThrottled(throttle, this::failStacklessOne, 1);
+      runThrottled(throttle, this::failStacklessTwo, 1);
+    }
+    assertEquals(2, logger.getLoggingEvents().size());
+    assertEquals(2, throttle.fingerprints());
+  }
+
+  /**
+   * If the exceptions stop, the number suppressed is still logged once the
+   * interval has passed.
+   */
+  @Test
+  public void testThrottleReportsSuppressed() {
+    LogExceptions.Throttle throttle = new LogExceptions.Throttle(TimeUnit.MINUTES.toNanos(1), 10, ticker);
+    runThrottled(throttle, this::failOne, 10);
+    throttle.logSummaries();
+    assertEquals(1, logger.getAllLoggingEvents().size());
+
+    ticker.advance(1, TimeUnit.MINUTES);
+    throttle.logSummaries();
+    assertEquals(2, logger.getAllLoggingEvents().size());
+    assertEquals("Caught exception", logger.getAllLoggingEvents().get(0).getMessage());
+    assertEquals("Suppressed {} identical: {}", logger.getAllLoggingEvents().get(1).getMessage());
+    assertEquals(9L, logger.getAllLoggingEvents().get(1).getArguments().get(0));
+  }
+
+  /**
+   * When the fingerprint map is full, idle fingerprints are evicted, with a
+   * summary of anything suppressed. If none are idle, exceptions are simply
+   * logged.
+   */
+  @Test
+  public void testThrottleBounded() {
+    LogExceptions.Throttle throttle = new LogExceptions.Throttle(TimeUnit.MINUTES.toNanos(1), 1, ticker);
+    runThrottled(throttle, this::failOne, 3);
+    runThrottled(throttle, this::failTwo, 2);
+    assertEquals(3, logger.getLoggingEvents().size());
+    assertEquals(1, throttle.fingerprints());
+
+    ticker.advance(1, TimeUnit.MINUTES);
+    runThrottled(throttle, this::failTwo, 1);
+    assertEquals(5, logger.getAllLoggingEvents().size());
+    assertEquals("Suppressed {} identical: {}", logger.getAllLoggingEvents().get(3).getMessage());
+    assertEquals(2L, logger.getAllLoggingEvents().get(3).getArguments().get(0));
+    assertEquals("Caught exception", logger.getAllLoggingEvents().get(4).getMessage());
+  }
+
+  /**
+   * Always calls {@link LogExceptions.Throttle#in(Runnable)} from the same
+   * line, so that the fingerprint only varies with the runnable.
+   */
+  private void runThrottled(LogExceptions.Throttle throttle, Runnable runnable, int times) {
+    for (int i = 0; i < times; i++) {
+      try {
+        throttle.in(runnable);
+        fail("No exception");
+      } catch (RuntimeException e) {
+        // Expected
+      }
+    }
+  }
+
+  /**
+   * Lets the throttle tests control time, so they don't depend on how long
+   * the first log call takes.
+   */
+  private static final class FakeTicker extends Ticker {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    void advance(long time, TimeUnit unit) {
+      nanos.addAndGet(unit.toNanos(time));
+    }
+
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+  }
+
+  private void failOne() {
+    throw new IllegalStateException("One");
+  }
+
+  private void failTwo() {
+    throw new IllegalStateException("Two");
+  }
+
+  private void failStacklessOne() {
+    CheckedExceptions.runStackless(() -> {
+      throw new FileNotFoundException("One");
+    });
+  }
+
+  private void failStacklessTwo() {
+    CheckedExceptions.runStackless(() -> {
+      throw new SQLException("Two");
+    });
+  }
+
   private void checkLoggedInterrupt() {
     assertEquals(1, logger.getLoggingEvents().size());
     assertFalse(logger.getLoggingEvents().get(0).getThrowable().isPresent());
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AdaptiveBatchSize}.
+ */
+public class TestAdaptiveBatchSize {
+
+  private static final long TARGET = 1_000_000;
+
+  @Test
+  public void testGrowsToMaxWhenFast() {
+    AdaptiveBatchSize adaptive = new AdaptiveBatchSize(10, 1000, TARGET);
+    assertEquals(10, adaptive.current());
+    for (int i = 0; i < 1000; i++) {
+      adaptive.update(adaptive.current(), TARGET / 2);
+    }
+    assertEquals(1000, adaptive.current());
+  }
+
+  @Test
+  public void testDoesNotGrowOnPartialBatches() {
+    AdaptiveBatchSize adaptive = new AdaptiveBatchSize(10, 1000, TARGET);
+    adaptive.update(3, 1);
+    assertEquals(10, adaptive.current());
+  }
+
+  @Test
+  public void testPausesGrowthAfterBreach() {
+    AdaptiveBatchSize adaptive = new AdaptiveBatchSize(10, 650, TARGET);
+    adaptive.update(10, TARGET);
+    assertEquals(20, adaptive.current());
+    adaptive.update(20, TARGET * 2);
+    assertEquals(10, adaptive.current());
+    for (int i = 0; i < 8; i++) {
+      assertEquals(10, adaptive.update(10, 1));
+    }
+    assertEquals(20, adaptive.update(10, 1));
+  }
+
+  @Test
+  public void testShrinksToMinWhenSlow() {
+    AdaptiveBatchSize adaptive = new AdaptiveBatchSize(10, 1000, TARGET);
+    for (int i = 0; i < 1000; i++) {
+      adaptive.update(adaptive.current(), TARGET / 2);
+    }
+    for (int i = 0; i < 20; i++) {
+      adaptive.update(adaptive.current(), TARGET * 100);
+    }
+    assertEquals(10, adaptive.current());
+  }
+
+  @Test
+  public void testHalvesOnBreach() {
+    AdaptiveBatchSize adaptive = new AdaptiveBatchSize(1, 1000, TARGET);
+    for (int i = 0; i < 1000; i++) {
+      adaptive.update(adaptive.current(), 1);
+    }
+    assertEquals(500, adaptive.update(1000, TARGET * 10));
+    assertEquals(405, adaptive.update(500, TARGET * 500 / 450));
+  }
+
+  /**
+   * Simulates a delegate with a fixed overhead plus a per-item cost and
+   * checks that the batch size settles just under the size which meets the
+   * target.
+   */
+  @Test
+  public void testConverges() {
+    AdaptiveBatchSize adaptive = new AdaptiveBatchSize(1, 10_000, TARGET);
+    long overhead = 200_000;
+    long perItem = 1_000;
+    int ideal = (int) ((TARGET - overhead) / perItem);
+    int breaches = 0;
+    for (int i = 0; i < 2000; i++) {
+      int size = adaptive.current();
+      long nanos = overhead + perItem * size;
+      if (nanos > TARGET) {
+        breaches++;
+      }
+      adaptive.update(size, nanos);
+      if (i > 1000) {
+        assertTrue("Size " + size, size > ideal / 2 && size <= ideal + 2 * 156);
+      }
+    }
+    assertTrue("Breaches " + breaches, breaches < 2000 / 5);
+  }
+}
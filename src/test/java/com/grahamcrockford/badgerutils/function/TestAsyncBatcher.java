@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link AsyncBatcher}.
+ */
+public class TestAsyncBatcher {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private final Queue<List<Integer>> batches = new ConcurrentLinkedQueue<>();
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testFlushesOnExecutor() {
+    Thread producer = Thread.currentThread();
+    AtomicBoolean sameThread = new AtomicBoolean();
+    try (AsyncBatcher<Integer> batcher = AsyncBatcher.batch(2, 2, executor, b -> {
+      sameThread.compareAndSet(false, Thread.currentThread() == producer);
+      batches.add(ImmutableList.copyOf(b));
+    })) {
+      ImmutableList.of(1, 2, 3, 4, 5).forEach(batcher);
+    }
+    assertFalse(sameThread.get());
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2), ImmutableList.of(3, 4), ImmutableList.of(5)),
+        ImmutableList.sortedCopyOf((a, b) -> a.get(0) - b.get(0), batches));
+  }
+
+  @Test
+  public void testFuturePerBatch() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    try (AsyncBatcher<Integer> batcher = AsyncBatcher.batch(2, 2, executor, b -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    })) {
+      CompletableFuture<Void> first = batcher.submit(1);
+      assertSame(first, batcher.submit(2));
+      CompletableFuture<Void> second = batcher.submit(3);
+      assertFalse(first == second);
+      assertFalse(first.isDone());
+      assertEquals(1, batcher.inFlight());
+      release.countDown();
+      first.get(5, TimeUnit.SECONDS);
+      assertFalse(second.isDone());
+    }
+  }
+
+  @Test
+  public void testBackpressure() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService producer = Executors.newSingleThreadExecutor();
+    try {
+      CompletableFuture<Void> produced = CompletableFuture.runAsync(() -> {
+        try (AsyncBatcher<Integer> batcher = AsyncBatcher.batch(1, 2, executor, b -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        })) {
+          ImmutableList.of(1, 2, 3).forEach(batcher);
+        }
+      }, producer);
+      Thread.sleep(100);
+      assertFalse("Third batch should block", produced.isDone());
+      release.countDown();
+      produced.get(5, TimeUnit.SECONDS);
+    } finally {
+      producer.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testInterruptedDispatchFailsFuture() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    try (AsyncBatcher<Integer> batcher = AsyncBatcher.batch(2, 1, executor, b -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    })) {
+      try {
+        batcher.submit(1);
+        batcher.submit(2);
+        CompletableFuture<Void> dropped = batcher.submit(3);
+        Thread.currentThread().interrupt();
+        try {
+          batcher.submit(4);
+          fail("No exception");
+        } catch (RuntimeException e) {
+          assertTrue(e.getCause() instanceof InterruptedException);
+          assertTrue(Thread.interrupted());
+        }
+        assertTrue(dropped.isCompletedExceptionally());
+      } finally {
+        release.countDown();
+      }
+    }
+  }
+
+  @Test
+  public void testFailuresSurfacedOnClose() {
+    IllegalStateException first = new IllegalStateException("1");
+    CompletableFuture<Void> result = null;
+    try (AsyncBatcher<Integer> batcher = AsyncBatcher.batch(1, 1, executor, b -> {
+      throw first;
+    })) {
+      result = batcher.submit(1);
+    } catch (IllegalStateException e) {
+      assertSame(first, e);
+      assertTrue(result.isCompletedExceptionally());
+      return;
+    }
+    fail("No exception");
+  }
+}
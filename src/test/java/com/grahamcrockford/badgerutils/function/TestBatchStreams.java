@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link BatchStreams}.
+ */
+public class TestBatchStreams {
+
+  @Test
+  public void testPartition() {
+    assertEquals(
+        ImmutableList.of(ImmutableList.of(1, 2, 3), ImmutableList.of(4, 5, 6), ImmutableList.of(7)),
+        BatchStreams.partition(Stream.of(1, 2, 3, 4, 5, 6, 7), 3).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testPartitionEmpty() {
+    assertEquals(0, BatchStreams.partition(Stream.empty(), 3).count());
+  }
+
+  @Test
+  public void testPartitionClosesSource() {
+    AtomicBoolean closed = new AtomicBoolean();
+    try (Stream<List<Integer>> batches = BatchStreams.partition(Stream.of(1).onClose(() -> closed.set(true)), 3)) {
+      batches.count();
+    }
+    assertTrue(closed.get());
+  }
+
+  @Test
+  public void testPartitionParallel() {
+    List<List<Integer>> batches = BatchStreams.partition(IntStream.range(0, 100_000).boxed().parallel(), 1000)
+        .collect(Collectors.toList());
+    batches.forEach(b -> assertTrue(b.size() <= 1000));
+    assertEquals(IntStream.range(0, 100_000).boxed().collect(Collectors.toList()),
+        batches.stream().flatMap(List::stream).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testToBatches() {
+    List<List<Integer>> batches = IntStream.range(0, 10_001).boxed().collect(BatchStreams.toBatches(1000));
+    assertEquals(11, batches.size());
+    assertEquals(1, batches.get(10).size());
+    assertEquals(IntStream.range(0, 10_001).boxed().collect(Collectors.toList()),
+        batches.stream().flatMap(List::stream).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testToBatchesParallel() {
+    List<List<Integer>> batches = IntStream.range(0, 100_001).boxed().parallel().collect(BatchStreams.toBatches(1000));
+    batches.forEach(b -> assertTrue(b.size() <= 1000));
+    assertEquals(IntStream.range(0, 100_001).boxed().collect(Collectors.toList()),
+        batches.stream().flatMap(List::stream).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testBatchingParallel() {
+    Queue<List<Integer>> batches = new ConcurrentLinkedQueue<>();
+    long count = IntStream.range(0, 100_001).boxed().parallel()
+        .collect(BatchStreams.batching(1000, b -> batches.add(ImmutableList.copyOf(b))));
+    assertEquals(100_001, count);
+    assertEquals(101, batches.size());
+    assertEquals(1, batches.stream().filter(b -> b.size() < 1000).count());
+    assertEquals(100_001, batches.stream().flatMap(List::stream).distinct().count());
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link BatchingLoader}.
+ */
+public class TestBatchingLoader {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Queue<Set<Integer>> loads = new ConcurrentLinkedQueue<>();
+
+  @After
+  public void tearDown() throws InterruptedException {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  private Map<Integer, String> lookup(Set<Integer> keys) {
+    loads.add(ImmutableSet.copyOf(keys));
+    Map<Integer, String> result = new HashMap<>();
+    keys.stream().filter(k -> k >= 0).forEach(k -> result.put(k, "v" + k));
+    return result;
+  }
+
+  @Test
+  public void testBatchesOnSize() throws Exception {
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(3, 1, TimeUnit.MINUTES, executor, this::lookup)) {
+      CompletableFuture<String> one = loader.load(1);
+      CompletableFuture<String> two = loader.load(2);
+      CompletableFuture<String> three = loader.load(3);
+      assertEquals("v1", one.get(5, TimeUnit.SECONDS));
+      assertEquals("v2", two.get(5, TimeUnit.SECONDS));
+      assertEquals("v3", three.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(ImmutableList.of(ImmutableSet.of(1, 2, 3)), ImmutableList.copyOf(loads));
+  }
+
+  @Test
+  public void testBatchesOnWindow() throws Exception {
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(100, 20, TimeUnit.MILLISECONDS, executor, this::lookup)) {
+      assertEquals("v1", loader.load(1).get(5, TimeUnit.SECONDS));
+    }
+  }
+
+  /**
+   * Keys requested from different threads within the same window go out in
+   * the same bulk load.
+   */
+  @Test
+  public void testOneLoadPerWindowAcrossThreads() throws Exception {
+    int threads = 8;
+    ExecutorService callers = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<List<CompletableFuture<String>>>> submitted = new ArrayList<>();
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(1000, 500, TimeUnit.MILLISECONDS, executor, this::lookup)) {
+      for (int t = 0; t < threads; t++) {
+        int offset = t * 8;
+        submitted.add(callers.submit(() -> {
+          start.await();
+          List<CompletableFuture<String>> results = new ArrayList<>();
+          for (int i = 0; i < 8; i++) {
+            results.add(loader.load(offset + i));
+          }
+          return results;
+        }));
+      }
+      start.countDown();
+      for (Future<List<CompletableFuture<String>>> f : submitted) {
+        for (CompletableFuture<String> future : f.get(5, TimeUnit.SECONDS)) {
+          future.get(5, TimeUnit.SECONDS);
+        }
+      }
+    } finally {
+      callers.shutdown();
+    }
+    assertEquals(1, loads.size());
+    assertEquals(64, loads.peek().size());
+  }
+
+  @Test
+  public void testDeduplicatesInFlight() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(100, 20, TimeUnit.MILLISECONDS, executor, keys -> {
+      release.await();
+      return lookup(keys);
+    })) {
+      CompletableFuture<String> first = loader.load(1);
+      assertSame(first, loader.load(1));
+      loader.load(2);
+      assertEquals(2, loader.inFlight());
+      release.countDown();
+      assertEquals("v1", first.get(5, TimeUnit.SECONDS));
+      // Not cached once complete
+      assertEquals("v1", loader.load(1).get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(ImmutableList.of(ImmutableSet.of(1, 2), ImmutableSet.of(1)), ImmutableList.copyOf(loads));
+  }
+
+  @Test
+  public void testMissingKey() throws Exception {
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(2, 1, TimeUnit.MINUTES, executor, this::lookup)) {
+      CompletableFuture<String> missing = loader.load(-1);
+      CompletableFuture<String> present = loader.load(1);
+      assertEquals("v1", present.get(5, TimeUnit.SECONDS));
+      assertFailedWith(NoSuchElementException.class, missing);
+    }
+  }
+
+  @Test
+  public void testNullValue() throws Exception {
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(1, 1, TimeUnit.MINUTES, executor,
+        keys -> { Map<Integer, String> result = new HashMap<>(); result.put(1, null); return result; })) {
+      assertEquals(null, loader.load(1).get(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testBatchFailure() throws Exception {
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(2, 1, TimeUnit.MINUTES, executor, keys -> {
+      throw new IOException("Boom");
+    })) {
+      CompletableFuture<String> one = loader.load(1);
+      CompletableFuture<String> two = loader.load(2);
+      assertFailedWith(IOException.class, one);
+      assertFailedWith(IOException.class, two);
+      assertEquals(0, loader.inFlight());
+    }
+  }
+
+  @Test
+  public void testCloseDispatchesWaiting() throws Exception {
+    CompletableFuture<String> future;
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(100, 1, TimeUnit.MINUTES, executor, this::lookup)) {
+      future = loader.load(1);
+    }
+    assertEquals("v1", future.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testLoadAfterClose() {
+    BatchingLoader<Integer, String> loader = BatchingLoader.loader(100, 1, TimeUnit.MINUTES, executor, this::lookup);
+    loader.close();
+    try {
+      loader.load(1);
+    } finally {
+      assertEquals(0, loader.inFlight());
+    }
+  }
+
+  @Test
+  public void testManyThreads() throws Exception {
+    int threads = 8;
+    int keys = 1000;
+    ExecutorService callers = Executors.newFixedThreadPool(threads);
+    List<CompletableFuture<String>> futures = new ArrayList<>();
+    try (BatchingLoader<Integer, String> loader = BatchingLoader.loader(50, 5, TimeUnit.MILLISECONDS, executor, this::lookup)) {
+      List<Future<List<CompletableFuture<String>>>> submitted = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        submitted.add(callers.submit(() -> {
+          List<CompletableFuture<String>> results = new ArrayList<>();
+          for (int i = 0; i < keys; i++) {
+            results.add(loader.load(i));
+          }
+          return results;
+        }));
+      }
+      for (Future<List<CompletableFuture<String>>> f : submitted) {
+        futures.addAll(f.get(30, TimeUnit.SECONDS));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        assertEquals("v" + (i % keys), futures.get(i).get(30, TimeUnit.SECONDS));
+      }
+    } finally {
+      callers.shutdown();
+    }
+    for (Set<Integer> load : loads) {
+      assertTrue(load.size() <= 50);
+    }
+  }
+
+  private static void assertFailedWith(Class<? extends Throwable> expected, CompletableFuture<?> future)
+      throws Exception {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Expected failure");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), expected.isInstance(e.getCause()));
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link BatchingProcessor}.
+ */
+public class TestBatchingProcessor {
+
+  private final Upstream upstream = new Upstream();
+  private final Downstream downstream = new Downstream();
+
+  @Test
+  public void testNoRequestWithoutDemand() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(3));
+    assertEquals(0, upstream.requested.get());
+    downstream.subscription.request(2);
+    assertEquals(6, upstream.requested.get());
+  }
+
+  @Test
+  public void testBatchesOnDemand() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(3));
+    downstream.subscription.request(1);
+    ImmutableList.of(1, 2, 3).forEach(processor::onNext);
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2, 3)), downstream.batches);
+    assertEquals(3, upstream.requested.get());
+    downstream.subscription.request(1);
+    assertEquals(6, upstream.requested.get());
+    ImmutableList.of(4, 5, 6).forEach(processor::onNext);
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2, 3), ImmutableList.of(4, 5, 6)), downstream.batches);
+  }
+
+  @Test
+  public void testHoldsBatchesUntilRequested() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(2, 10, TimeUnit.MILLISECONDS));
+    downstream.subscription.request(1);
+    processor.onNext(1);
+    processor.onNext(2);
+    assertEquals(1, downstream.batches.size());
+    downstream.subscription.request(1);
+    processor.onNext(3);
+    processor.onComplete();
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2), ImmutableList.of(3)), downstream.batches);
+    assertTrue(downstream.completed);
+  }
+
+  @Test
+  public void testCompleteFlushesPartial() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(3));
+    processor.onNext(1);
+    processor.onComplete();
+    assertTrue(downstream.batches.isEmpty());
+    assertFalse(downstream.completed);
+    downstream.subscription.request(1);
+    assertEquals(ImmutableList.of(ImmutableList.of(1)), downstream.batches);
+    assertTrue(downstream.completed);
+  }
+
+  @Test
+  public void testLinger() throws InterruptedException {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(3, 20, TimeUnit.MILLISECONDS));
+    downstream.subscription.request(5);
+    processor.onNext(1);
+    processor.onNext(2);
+    assertTrue(downstream.received.await(5, TimeUnit.SECONDS));
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2)), downstream.batches);
+    // Only the items still needed for the remaining batches are requested
+    assertEquals(15, upstream.requested.get());
+  }
+
+  @Test
+  public void testUnbounded() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(2));
+    downstream.subscription.request(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, upstream.requested.get());
+    ImmutableList.of(1, 2, 3).forEach(processor::onNext);
+    processor.onComplete();
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2), ImmutableList.of(3)), downstream.batches);
+    assertEquals(Long.MAX_VALUE, upstream.requested.get());
+  }
+
+  @Test
+  public void testCancel() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(2));
+    downstream.subscription.request(1);
+    processor.onNext(1);
+    downstream.subscription.cancel();
+    assertTrue(upstream.cancelled.get());
+    processor.onNext(2);
+    processor.onComplete();
+    assertTrue(downstream.batches.isEmpty());
+    assertFalse(downstream.completed);
+  }
+
+  @Test
+  public void testError() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(2));
+    downstream.subscription.request(1);
+    processor.onNext(1);
+    IllegalStateException e = new IllegalStateException();
+    processor.onError(e);
+    assertEquals(e, downstream.error);
+    assertTrue(downstream.batches.isEmpty());
+  }
+
+  @Test
+  public void testInvalidRequest() {
+    connect(BatchingProcessor.batch(2));
+    downstream.subscription.request(0);
+    assertTrue(downstream.error instanceof IllegalArgumentException);
+    assertTrue(upstream.cancelled.get());
+  }
+
+  @Test
+  public void testSubscriberThrows() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(1));
+    downstream.subscription.request(1);
+    downstream.throwOnNext = true;
+    processor.onNext(1);
+    assertTrue(downstream.error instanceof IllegalStateException);
+    assertTrue(upstream.cancelled.get());
+  }
+
+  @Test
+  public void testSecondSubscriberRejected() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(2));
+    Downstream second = new Downstream();
+    processor.subscribe(second);
+    assertTrue(second.error instanceof IllegalStateException);
+    assertNull(downstream.error);
+  }
+
+  @Test
+  public void testSecondPublisherCancelled() {
+    BatchingProcessor<Integer> processor = connect(BatchingProcessor.batch(2));
+    Upstream second = new Upstream();
+    processor.onSubscribe(second);
+    assertTrue(second.cancelled.get());
+    assertFalse(upstream.cancelled.get());
+  }
+
+  /**
+   * A publisher which emits synchronously from within {@code request}, to a
+   * subscriber which requests synchronously from within {@code onNext}, must
+   * neither recurse nor lose signals.
+   */
+  @Test
+  public void testSynchronousReentrancy() {
+    BatchingProcessor<Integer> processor = BatchingProcessor.batch(3);
+    processor.subscribe(downstream);
+    downstream.requestOnNext = true;
+    AtomicLong next = new AtomicLong();
+    processor.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        for (long i = 0; i < n && next.get() < 10_000; i++) {
+          processor.onNext((int) next.getAndIncrement());
+        }
+        if (next.get() == 10_000) {
+          processor.onComplete();
+        }
+      }
+      @Override
+      public void cancel() {
+      }
+    });
+    downstream.subscription.request(1);
+    assertTrue(downstream.completed);
+    assertEquals(3334, downstream.batches.size());
+    int expected = 0;
+    for (List<Integer> batch : downstream.batches) {
+      for (Integer i : batch) {
+        assertEquals(expected++, (int) i);
+      }
+    }
+    assertEquals(10_000, expected);
+  }
+
+  private BatchingProcessor<Integer> connect(BatchingProcessor<Integer> processor) {
+    processor.onSubscribe(upstream);
+    processor.subscribe(downstream);
+    return processor;
+  }
+
+  private static final class Upstream implements Subscription {
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    @Override
+    public void request(long n) {
+      requested.set(n == Long.MAX_VALUE ? n : requested.get() + n);
+    }
+
+    @Override
+    public void cancel() {
+      cancelled.set(true);
+    }
+  }
+
+  private static final class Downstream implements Subscriber<List<Integer>> {
+
+    private final List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+    private final CountDownLatch received = new CountDownLatch(1);
+    private volatile Subscription subscription;
+    private volatile Throwable error;
+    private volatile boolean completed;
+    private volatile boolean requestOnNext;
+    private volatile boolean throwOnNext;
+
+    @Override
+    public void onSubscribe(Subscription s) {
+      subscription = s;
+    }
+
+    @Override
+    public void onNext(List<Integer> batch) {
+      if (throwOnNext) {
+        throw new IllegalStateException();
+      }
+      batches.add(batch);
+      received.countDown();
+      if (requestOnNext) {
+        subscription.request(1);
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+}
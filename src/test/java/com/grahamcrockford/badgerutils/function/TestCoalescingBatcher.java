@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link CoalescingBatcher}.
+ */
+public class TestCoalescingBatcher {
+
+  private final List<List<String>> batches = new ArrayList<>();
+
+  @Test
+  public void testLastWriteWins() {
+    try (CoalescingBatcher<Character, String> batcher = CoalescingBatcher.coalesce(3, s -> s.charAt(0),
+        b -> batches.add(ImmutableList.copyOf(b)))) {
+      ImmutableList.of("a1", "b1", "a2", "c1", "b2", "d1", "d2", "a3").forEach(batcher);
+      assertEquals(ImmutableList.of(ImmutableList.of("a2", "b2", "c1")), batches);
+      assertEquals(3, batcher.coalesced());
+    }
+    assertEquals(ImmutableList.of("d2", "a3"), batches.get(1));
+  }
+
+  @Test
+  public void testMergeAndSort() {
+    try (CoalescingBatcher<Character, String> batcher = CoalescingBatcher.coalesce(10, s -> s.charAt(0),
+        (a, b) -> a + b.substring(1), Comparator.naturalOrder(), b -> batches.add(ImmutableList.copyOf(b)))) {
+      ImmutableList.of("c1", "a1", "b1", "a2", "c2", "a3").forEach(batcher);
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of("a123", "b1", "c12")), batches);
+  }
+
+  @Test
+  public void testNoData() {
+    try (CoalescingBatcher<Character, String> batcher = CoalescingBatcher.coalesce(3, s -> s.charAt(0),
+        b -> batches.add(ImmutableList.copyOf(b)))) {
+    }
+    assertEquals(ImmutableList.of(), batches);
+  }
+
+  /**
+   * Compares against a simple map-based implementation with many colliding
+   * keys.
+   */
+  @Test
+  public void testAgainstHashMap() {
+    Random random = new Random(42);
+    List<List<Integer>> actual = new ArrayList<>();
+    List<List<Integer>> expected = new ArrayList<>();
+    Map<Integer, Integer> open = new HashMap<>();
+    List<Integer> order = new ArrayList<>();
+    try (CoalescingBatcher<Integer, Integer> batcher = CoalescingBatcher.coalesce(100, i -> i % 1000 * 64,
+        Integer::sum, null, b -> actual.add(ImmutableList.copyOf(b)))) {
+      for (int i = 0; i < 100_000; i++) {
+        int value = random.nextInt(5000);
+        int key = value % 1000 * 64;
+        if (!open.containsKey(key) && open.size() == 100) {
+          expected.add(flush(open, order));
+        }
+        if (open.merge(key, value, Integer::sum) == value && !order.contains(key)) {
+          order.add(key);
+        }
+        batcher.accept(value);
+      }
+    }
+    expected.add(flush(open, order));
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Sorted batches match a sorted set of the same keys, for assorted batch
+   * sizes.
+   */
+  @Test
+  public void testSortedAgainstTreeSet() {
+    Random random = new Random(42);
+    for (int batchSize : new int[] { 1, 2, 3, 64, 257 }) {
+      List<List<Integer>> actual = new ArrayList<>();
+      List<List<Integer>> expected = new ArrayList<>();
+      TreeSet<Integer> open = new TreeSet<>();
+      try (CoalescingBatcher<Integer, Integer> batcher = CoalescingBatcher.coalesce(batchSize, i -> i,
+          (a, b) -> b, Comparator.naturalOrder(), b -> actual.add(ImmutableList.copyOf(b)))) {
+        for (int i = 0; i < 10_000; i++) {
+          int value = random.nextInt(1000);
+          if (!open.contains(value) && open.size() == batchSize) {
+            expected.add(ImmutableList.copyOf(open));
+            open.clear();
+          }
+          open.add(value);
+          batcher.accept(value);
+        }
+      }
+      expected.add(ImmutableList.copyOf(open));
+      assertEquals(expected, actual);
+    }
+  }
+
+  private List<Integer> flush(Map<Integer, Integer> open, List<Integer> order) {
+    List<Integer> batch = new ArrayList<>();
+    for (Integer key : order) {
+      batch.add(open.get(key));
+    }
+    open.clear();
+    order.clear();
+    return batch;
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.grahamcrockford.badgerutils.base.LogExceptions;
+
+import uk.org.lidalia.slf4jtest.TestLogger;
+import uk.org.lidalia.slf4jtest.TestLoggerFactory;
+
+/**
+ * Tests for {@link ConcurrentBatcher}.
+ */
+public class TestConcurrentBatcher {
+
+  private static final int THREADS = 8;
+  private static final int ITEMS_PER_THREAD = 10_007;
+  private static final int BATCH_SIZE = 100;
+
+  private final Queue<List<Integer>> batches = new ConcurrentLinkedQueue<>();
+  private final Consumer<Iterable<Integer>> delegate = b -> batches.add(ImmutableList.copyOf(b));
+
+  @Test
+  public void testNoData() {
+    try (ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(delegate)) {
+    }
+    assertTrue(batches.isEmpty());
+  }
+
+  @Test
+  public void testAutoClose() {
+    AtomicBoolean closed = new AtomicBoolean();
+    try (ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(new AutoCloseableConsumer() {
+      @Override
+      public void accept(Iterable<Integer> t) {
+      }
+      @Override
+      public void close() {
+        closed.set(true);
+      }
+    })) {
+    }
+    assertTrue(closed.get());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testAcceptAfterClose() {
+    ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(delegate);
+    batcher.close();
+    batcher.accept(1);
+  }
+
+  @Test
+  public void testSingleThread() {
+    try (ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(5, delegate)) {
+      ImmutableList.of(1, 2, 3, 4, 5, 6, 7).forEach(batcher);
+      assertEquals(ImmutableList.of(ImmutableList.of(1, 2, 3, 4, 5)), ImmutableList.copyOf(batches));
+    }
+    assertEquals(ImmutableList.of(6, 7), ImmutableList.copyOf(batches).get(1));
+  }
+
+  @Test
+  public void testLingerFlush() throws InterruptedException {
+    CountDownLatch flushed = new CountDownLatch(1);
+    try (ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(1000, 20, TimeUnit.MILLISECONDS, b -> {
+      delegate.accept(b);
+      flushed.countDown();
+    })) {
+      ImmutableList.of(1, 2, 3).forEach(batcher);
+      assertTrue(flushed.await(5, TimeUnit.SECONDS));
+      assertEquals(ImmutableList.of(ImmutableList.of(1, 2, 3)), ImmutableList.copyOf(batches));
+    }
+    assertEquals(1, batches.size());
+  }
+
+  @Test
+  public void testLingerFailureLogged() throws InterruptedException {
+    TestLogger logger = TestLoggerFactory.getTestLogger(LogExceptions.class);
+    try (ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(1000, 20, TimeUnit.MILLISECONDS, b -> {
+      throw new IllegalStateException("Linger failure");
+    })) {
+      batcher.accept(1);
+      for (int i = 0; i < 500 && logger.getAllLoggingEvents().isEmpty(); i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, logger.getAllLoggingEvents().size());
+      assertEquals("Linger failure", logger.getAllLoggingEvents().get(0).getThrowable().get().getMessage());
+    } finally {
+      TestLoggerFactory.clear();
+    }
+  }
+
+  @Test
+  public void testNoLingerFlushOnceFull() throws InterruptedException {
+    try (ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(2, 20, TimeUnit.MILLISECONDS, delegate)) {
+      ImmutableList.of(1, 2).forEach(batcher);
+      Thread.sleep(100);
+      assertEquals(ImmutableList.of(ImmutableList.of(1, 2)), ImmutableList.copyOf(batches));
+    }
+  }
+
+  /**
+   * Hammers the batcher from many threads and makes sure that every item
+   * arrives exactly once and that the leftovers from each thread are merged
+   * on close.
+   */
+  @Test
+  public void testManyThreads() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    CountDownLatch start = new CountDownLatch(1);
+    try (ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(BATCH_SIZE, delegate)) {
+      for (int t = 0; t < THREADS; t++) {
+        int offset = t * ITEMS_PER_THREAD;
+        executor.execute(() -> {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          for (int i = 0; i < ITEMS_PER_THREAD; i++) {
+            batcher.accept(offset + i);
+          }
+        });
+      }
+      start.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    }
+
+    boolean[] seen = new boolean[THREADS * ITEMS_PER_THREAD];
+    int partial = 0;
+    for (List<Integer> batch : batches) {
+      assertTrue(batch.size() <= BATCH_SIZE);
+      if (batch.size() < BATCH_SIZE) {
+        partial++;
+      }
+      for (Integer i : batch) {
+        assertTrue("Duplicate " + i, !seen[i]);
+        seen[i] = true;
+      }
+    }
+    List<Integer> missing = new ArrayList<>();
+    for (int i = 0; i < seen.length; i++) {
+      if (!seen[i]) {
+        missing.add(i);
+      }
+    }
+    assertEquals(ImmutableList.of(), missing);
+    assertTrue("Too many partial batches: " + partial, partial <= 1);
+  }
+
+  /**
+   * Closes the batcher while producers are still flushing, and makes sure
+   * the delegate is never called once it has been closed.
+   */
+  @Test
+  public void testConcurrentClose() throws InterruptedException {
+    for (int run = 0; run < 50; run++) {
+      AtomicBoolean closed = new AtomicBoolean();
+      AtomicBoolean calledAfterClose = new AtomicBoolean();
+      ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(1, new AutoCloseableConsumer() {
+        @Override
+        public void accept(Iterable<Integer> t) {
+          if (closed.get()) {
+            calledAfterClose.set(true);
+          }
+        }
+        @Override
+        public void close() {
+          closed.set(true);
+        }
+      });
+      ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+      CountDownLatch started = new CountDownLatch(THREADS);
+      for (int t = 0; t < THREADS; t++) {
+        executor.execute(() -> {
+          started.countDown();
+          try {
+            for (int i = 0; i < ITEMS_PER_THREAD; i++) {
+              batcher.accept(i);
+            }
+          } catch (IllegalStateException e) {
+            // Closed
+          }
+        });
+      }
+      started.await();
+      batcher.close();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+      assertTrue("Delegate called after close on run " + run, !calledAfterClose.get());
+    }
+  }
+
+  private interface AutoCloseableConsumer extends Consumer<Iterable<Integer>>, AutoCloseable {
+    @Override
+    void close();
+  }
+}
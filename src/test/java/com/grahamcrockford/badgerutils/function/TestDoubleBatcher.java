@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DoubleBatcher}.
+ */
+public class TestDoubleBatcher {
+
+  private final List<double[]> batches = new ArrayList<>();
+
+  @Test
+  public void testCopies() {
+    try (DoubleBatcher batcher = DoubleBatcher.batch(2, batches::add)) {
+      Arrays.stream(new double[] { 1, 2, 3 }).forEach(batcher);
+      assertEquals(1, batches.size());
+    }
+    assertArrayEquals(new double[] { 1, 2 }, batches.get(0), 0);
+    assertArrayEquals(new double[] { 3 }, batches.get(1), 0);
+  }
+
+  @Test
+  public void testSlices() {
+    try (DoubleBatcher batcher = DoubleBatcher.batchSlices(2, (values, length) -> batches.add(Arrays.copyOf(values, length)))) {
+      Arrays.stream(new double[] { 1, 2, 3 }).forEach(batcher);
+    }
+    assertArrayEquals(new double[] { 1, 2 }, batches.get(0), 0);
+    assertArrayEquals(new double[] { 3 }, batches.get(1), 0);
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link DurableBatcher}.
+ */
+public class TestDurableBatcher {
+
+  private Path directory;
+  private final List<List<String>> delivered = new ArrayList<>();
+
+  @Before
+  public void before() throws IOException {
+    directory = Files.createTempDirectory("wal");
+  }
+
+  @After
+  public void after() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(f -> f.toFile().delete());
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void testBatchesAndCleansUp() throws IOException {
+    try (DurableBatcher<String> batcher = open()) {
+      ImmutableList.of("a", "b", "c", "d").forEach(batcher);
+      assertEquals(ImmutableList.of(ImmutableList.of("a", "b", "c")), delivered);
+      assertEquals(1, segmentCount());
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of("a", "b", "c"), ImmutableList.of("d")), delivered);
+    assertEquals(0, segmentCount());
+  }
+
+  @Test
+  public void testReplayAfterCrash() throws IOException {
+    DurableBatcher<String> crashed = open();
+    ImmutableList.of("a", "b", "c", "d", "e").forEach(crashed);
+    assertEquals(ImmutableList.of(ImmutableList.of("a", "b", "c")), delivered);
+    delivered.clear();
+    crashed.abandon();
+
+    // "Crash" without closing, then restart
+    try (DurableBatcher<String> batcher = open()) {
+      assertEquals(ImmutableList.of(ImmutableList.of("d", "e")), delivered);
+      batcher.accept("f");
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of("d", "e"), ImmutableList.of("f")), delivered);
+    assertEquals(0, segmentCount());
+  }
+
+  @Test
+  public void testTornWriteIgnored() throws IOException {
+    DurableBatcher<String> crashed = open();
+    ImmutableList.of("a", "b").forEach(crashed);
+    crashed.abandon();
+    try (Stream<Path> files = segments()) {
+      Path segment = files.findFirst().get();
+      Files.write(segment, new byte[] { 0, 0, 0, 5, 1, 2, 3, 4, 'x' }, StandardOpenOption.APPEND);
+    }
+    try (DurableBatcher<String> batcher = open()) {
+      assertEquals(ImmutableList.of(ImmutableList.of("a", "b")), delivered);
+    }
+  }
+
+  @Test
+  public void testLargeItems() {
+    String big = new String(new char[100_000]).replace('\0', 'x');
+    try (DurableBatcher<String> batcher = open()) {
+      batcher.accept(big);
+    }
+    assertEquals(big, delivered.get(0).get(0));
+  }
+
+  @Test
+  public void testDirectoryInUse() {
+    try (DurableBatcher<String> batcher = open()) {
+      try {
+        open();
+        fail("No exception");
+      } catch (IllegalStateException e) {
+        // Expected
+      }
+      batcher.accept("a");
+    }
+    try (DurableBatcher<String> batcher = open()) {
+      batcher.accept("b");
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of("a"), ImmutableList.of("b")), delivered);
+  }
+
+  @Test
+  public void testFailedCloseKeepsSegment() throws IOException {
+    DurableBatcher<String> failing = DurableBatcher.open(directory, 3, 100, Codec.utf8(), b -> {
+      throw new IllegalStateException("Down");
+    });
+    ImmutableList.of("a", "b").forEach(failing);
+    try {
+      failing.close();
+      fail("No exception");
+    } catch (IllegalStateException e) {
+      assertEquals("Down", e.getMessage());
+    }
+    assertEquals(1, segmentCount());
+    try (DurableBatcher<String> batcher = open()) {
+      assertEquals(ImmutableList.of(ImmutableList.of("a", "b")), delivered);
+    }
+    assertEquals(0, segmentCount());
+  }
+
+  private DurableBatcher<String> open() {
+    return DurableBatcher.open(directory, 3, 1, Codec.utf8(), b -> delivered.add(ImmutableList.copyOf(b)));
+  }
+
+  private long segmentCount() throws IOException {
+    try (Stream<Path> files = segments()) {
+      return files.count();
+    }
+  }
+
+  private Stream<Path> segments() throws IOException {
+    return Files.list(directory).filter(f -> f.getFileName().toString().endsWith(".wal"));
+  }
+}
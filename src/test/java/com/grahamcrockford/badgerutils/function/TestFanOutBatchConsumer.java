@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.grahamcrockford.badgerutils.base.CheckedExceptions;
+
+/**
+ * Tests for {@link FanOutBatchConsumer}.
+ */
+public class TestFanOutBatchConsumer {
+
+  private final ExecutorService fast = Executors.newSingleThreadExecutor();
+  private final ExecutorService slow = Executors.newSingleThreadExecutor();
+
+  @After
+  public void after() {
+    fast.shutdownNow();
+    slow.shutdownNow();
+  }
+
+  @Test
+  public void testDeliversSameBatchToAll() {
+    Queue<Iterable<Integer>> first = new ConcurrentLinkedQueue<>();
+    Queue<Iterable<Integer>> second = new ConcurrentLinkedQueue<>();
+    try (Batcher<Integer> batcher = Batcher.batch(2, FanOutBatchConsumer.fanOut(ImmutableList.of(
+        FanOutBatchConsumer.sink("first", fast, 2, first::add),
+        FanOutBatchConsumer.sink("second", slow, 2, second::add))))) {
+      ImmutableList.of(1, 2, 3, 4, 5).forEach(batcher);
+    }
+    assertEquals(3, first.size());
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2), ImmutableList.of(3, 4), ImmutableList.of(5)),
+        ImmutableList.copyOf(first).stream().map(ImmutableList::copyOf).collect(ImmutableList.toImmutableList()));
+    List<Iterable<Integer>> a = ImmutableList.copyOf(first);
+    List<Iterable<Integer>> b = ImmutableList.copyOf(second);
+    for (int i = 0; i < 3; i++) {
+      assertSame(a.get(i), b.get(i));
+    }
+  }
+
+  /**
+   * A blocked sink doesn't hold up the others until it has its maximum
+   * number of batches in flight.
+   */
+  @Test
+  public void testSlowSinkDoesNotHoldUpOthers() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch fastDone = new CountDownLatch(3);
+    FanOutBatchConsumer<Integer> fanOut = FanOutBatchConsumer.fanOut(ImmutableList.of(
+        FanOutBatchConsumer.sink("slow", slow, 3, b -> CheckedExceptions.runUnchecked(release::await)),
+        FanOutBatchConsumer.sink("fast", fast, 1, b -> fastDone.countDown())));
+    for (int i = 0; i < 3; i++) {
+      fanOut.accept(ImmutableList.of(i));
+    }
+    assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+    FanOutBatchConsumer.Sink<Integer> slowSink = fanOut.sinks().get(0);
+    FanOutBatchConsumer.Sink<Integer> fastSink = fanOut.sinks().get(1);
+    // Counted just after the delegate returns
+    for (int i = 0; i < 500 && fastSink.completed() < 3; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(3, slowSink.lag());
+    assertEquals(3, slowSink.inFlight());
+    assertEquals(0, fastSink.lag());
+    assertEquals(3, fastSink.completed());
+
+    release.countDown();
+    fanOut.close();
+    assertEquals(0, slowSink.lag());
+    assertEquals(3, slowSink.completed());
+  }
+
+  @Test
+  public void testFailuresCollected() {
+    AtomicBoolean closed = new AtomicBoolean();
+    Queue<Iterable<Integer>> delivered = new ConcurrentLinkedQueue<>();
+    FanOutBatchConsumer<Integer> fanOut = FanOutBatchConsumer.fanOut(ImmutableList.of(
+        FanOutBatchConsumer.sink("failing", slow, 1, b -> {
+          throw new IllegalStateException("Boo " + b.iterator().next());
+        }),
+        FanOutBatchConsumer.sink("ok", fast, 1, new AutoCloseableConsumer() {
+          @Override
+          public void accept(Iterable<Integer> t) {
+            delivered.add(t);
+          }
+          @Override
+          public void close() {
+            closed.set(true);
+          }
+        })));
+    fanOut.accept(ImmutableList.of(1));
+    fanOut.accept(ImmutableList.of(2));
+    try {
+      fanOut.close();
+      fail("No exception");
+    } catch (IllegalStateException e) {
+      assertEquals("Boo 1", e.getMessage());
+      assertEquals(1, e.getSuppressed().length);
+    }
+    assertEquals(2, fanOut.sinks().get(0).failed());
+    assertEquals(2, delivered.size());
+    assertTrue(closed.get());
+  }
+
+  @Test
+  public void testRejectedBatchNotCounted() {
+    FanOutBatchConsumer<Integer> fanOut = FanOutBatchConsumer.fanOut(ImmutableList.of(
+        FanOutBatchConsumer.sink("ok", fast, 1, b -> { }),
+        FanOutBatchConsumer.sink("rejecting", r -> {
+          throw new RejectedExecutionException();
+        }, 1, b -> { })));
+    try {
+      fanOut.accept(ImmutableList.of(1));
+      fail("No exception");
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+    fanOut.close();
+    assertEquals(0, fanOut.sinks().get(0).lag());
+    assertEquals(0, fanOut.sinks().get(1).lag());
+    assertEquals(0, fanOut.sinks().get(1).inFlight());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSinkReuse() {
+    FanOutBatchConsumer.Sink<Integer> sink = FanOutBatchConsumer.sink("once", fast, 1, b -> { });
+    FanOutBatchConsumer.fanOut(ImmutableList.of(sink));
+    FanOutBatchConsumer.fanOut(ImmutableList.of(sink));
+  }
+
+  private interface AutoCloseableConsumer extends Consumer<Iterable<Integer>>, AutoCloseable {
+    @Override
+    void close();
+  }
+}
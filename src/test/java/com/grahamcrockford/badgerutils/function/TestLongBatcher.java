@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LongBatcher}.
+ */
+public class TestLongBatcher {
+
+  private final List<long[]> batches = new ArrayList<>();
+
+  @Test
+  public void testNoData() {
+    try (LongBatcher batcher = LongBatcher.batch(batches::add)) {
+    }
+    assertTrue(batches.isEmpty());
+  }
+
+  @Test
+  public void testCopies() {
+    try (LongBatcher batcher = LongBatcher.batch(3, batches::add)) {
+      LongStream.rangeClosed(1, 7).forEach(batcher);
+      assertEquals(2, batches.size());
+    }
+    assertEquals(3, batches.size());
+    assertArrayEquals(new long[] { 1, 2, 3 }, batches.get(0));
+    assertArrayEquals(new long[] { 4, 5, 6 }, batches.get(1));
+    assertArrayEquals(new long[] { 7 }, batches.get(2));
+  }
+
+  @Test
+  public void testSlices() {
+    List<long[]> arrays = new ArrayList<>();
+    try (LongBatcher batcher = LongBatcher.batchSlices(3, (values, length) -> {
+      arrays.add(values);
+      batches.add(Arrays.copyOf(values, length));
+    })) {
+      LongStream.rangeClosed(1, 5).forEach(batcher);
+    }
+    assertArrayEquals(new long[] { 1, 2, 3 }, batches.get(0));
+    assertArrayEquals(new long[] { 4, 5 }, batches.get(1));
+    assertSame(arrays.get(0), arrays.get(1));
+  }
+
+  @Test
+  public void testAutoClose() {
+    AtomicBoolean closed = new AtomicBoolean();
+    try (LongBatcher batcher = LongBatcher.batch(new AutoCloseableConsumer() {
+      @Override
+      public void accept(long[] t) {
+      }
+      @Override
+      public void close() {
+        closed.set(true);
+      }
+    })) {
+    }
+    assertTrue(closed.get());
+  }
+
+  @Test
+  public void testPreventUseOnDifferentThreadToCreator() throws Exception {
+    try (LongBatcher batcher = LongBatcher.batch(batches::add)) {
+      Boolean failed = Executors.newSingleThreadExecutor().submit(() -> {
+        try {
+          batcher.accept(2);
+        } catch (ConcurrentModificationException e) {
+          return true;
+        }
+        return false;
+      }).get();
+      assertTrue(failed);
+    }
+  }
+
+  private interface AutoCloseableConsumer extends Consumer<long[]>, AutoCloseable {
+    @Override
+    void close();
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.grahamcrockford.badgerutils.function.PartitionedBatcher.EvictionPolicy;
+
+/**
+ * Tests for {@link PartitionedBatcher}.
+ */
+public class TestPartitionedBatcher {
+
+  private final Queue<Map.Entry<Integer, List<Integer>>> batches = new ConcurrentLinkedQueue<>();
+
+  private void record(Integer key, Iterable<Integer> batch) {
+    batches.add(Maps.immutableEntry(key, ImmutableList.copyOf(batch)));
+  }
+
+  @Test
+  public void testPartitionsBySize() {
+    try (PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i % 2, 2, 100, this::record)) {
+      ImmutableList.of(1, 2, 3, 4, 5).forEach(batcher);
+      assertEquals(ImmutableList.of(
+          Maps.immutableEntry(1, ImmutableList.of(1, 3)),
+          Maps.immutableEntry(0, ImmutableList.of(2, 4))), ImmutableList.copyOf(batches));
+      assertEquals(1, batcher.partitionCount());
+      assertEquals(1, batcher.bufferedCount());
+    }
+    assertEquals(Maps.immutableEntry(1, ImmutableList.of(5)), ImmutableList.copyOf(batches).get(2));
+  }
+
+  @Test
+  public void testIdlePartitionsDiscarded() {
+    try (PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i, 1, 100, this::record)) {
+      IntStream.range(0, 1000).boxed().forEach(batcher);
+      assertEquals(0, batcher.partitionCount());
+      assertEquals(1000, batches.size());
+    }
+  }
+
+  @Test
+  public void testEvictLargest() {
+    try (PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i / 10, 100, 5, this::record)) {
+      ImmutableList.of(1, 2, 3, 11, 12, 21).forEach(batcher);
+      assertEquals(ImmutableList.of(Maps.immutableEntry(0, ImmutableList.of(1, 2, 3))), ImmutableList.copyOf(batches));
+      assertEquals(3, batcher.bufferedCount());
+    }
+  }
+
+  @Test
+  public void testEvictOldest() {
+    try (PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i / 10, 100, 1, TimeUnit.HOURS,
+        3, EvictionPolicy.OLDEST, this::record)) {
+      ImmutableList.of(11, 1, 2, 3).forEach(batcher);
+      assertEquals(ImmutableList.of(Maps.immutableEntry(1, ImmutableList.of(11))), ImmutableList.copyOf(batches));
+    }
+  }
+
+  @Test
+  public void testEvictOldestAfterFlushInMiddle() {
+    try (PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i / 10, 2, 1, TimeUnit.HOURS,
+        3, EvictionPolicy.OLDEST, this::record)) {
+      ImmutableList.of(1, 11, 21, 12, 31, 41, 51).forEach(batcher);
+      assertEquals(ImmutableList.of(
+          Maps.immutableEntry(1, ImmutableList.of(11, 12)),
+          Maps.immutableEntry(0, ImmutableList.of(1)),
+          Maps.immutableEntry(2, ImmutableList.of(21))), ImmutableList.copyOf(batches));
+      assertEquals(3, batcher.creationOrderSize());
+    }
+  }
+
+  @Test
+  public void testLinger() throws InterruptedException {
+    CountDownLatch flushed = new CountDownLatch(2);
+    try (PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i % 2, 100, 20,
+        TimeUnit.MILLISECONDS, 1000, EvictionPolicy.LARGEST, (k, b) -> {
+          record(k, b);
+          flushed.countDown();
+        })) {
+      ImmutableList.of(1, 2, 3).forEach(batcher);
+      assertTrue(flushed.await(5, TimeUnit.SECONDS));
+      assertEquals(0, batcher.partitionCount());
+    }
+    Map<Integer, List<Integer>> byKey = batches.stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    assertEquals(ImmutableList.of(1, 3), byKey.get(1));
+    assertEquals(ImmutableList.of(2), byKey.get(0));
+  }
+
+  @Test
+  public void testFlushedPartitionsNotTracked() {
+    try (PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i % 10, 100, 1, TimeUnit.HOURS,
+        1000, EvictionPolicy.OLDEST, (k, b) -> {})) {
+      IntStream.range(0, 100_000).boxed().forEach(batcher);
+      assertEquals(0, batcher.partitionCount());
+      assertEquals(0, batcher.creationOrderSize());
+    }
+  }
+
+  /**
+   * Closes the batcher while producers are still flushing, and makes sure
+   * the delegate is never called once it has been closed.
+   */
+  @Test
+  public void testConcurrentClose() throws InterruptedException {
+    for (int run = 0; run < 50; run++) {
+      AtomicBoolean closed = new AtomicBoolean();
+      AtomicBoolean calledAfterClose = new AtomicBoolean();
+      PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i % 4, 1, 100,
+          new AutoCloseableConsumer() {
+            @Override
+            public void accept(Integer key, Iterable<Integer> batch) {
+              if (closed.get()) {
+                calledAfterClose.set(true);
+              }
+            }
+            @Override
+            public void close() {
+              closed.set(true);
+            }
+          });
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      CountDownLatch started = new CountDownLatch(8);
+      for (int t = 0; t < 8; t++) {
+        executor.execute(() -> {
+          started.countDown();
+          try {
+            for (int i = 0; i < 10_000; i++) {
+              batcher.accept(i);
+            }
+          } catch (IllegalStateException e) {
+            // Closed
+          }
+        });
+      }
+      started.await();
+      batcher.close();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+      assertFalse("Delegate called after close on run " + run, calledAfterClose.get());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testAcceptAfterClose() {
+    PartitionedBatcher<Integer, Integer> batcher = PartitionedBatcher.partition(i -> i, 10, 100, this::record);
+    batcher.close();
+    batcher.accept(1);
+  }
+
+  private interface AutoCloseableConsumer extends BiConsumer<Integer, Iterable<Integer>>, AutoCloseable {
+    @Override
+    void close();
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link RetryingBatchConsumer}.
+ */
+public class TestRetryingBatchConsumer {
+
+  private final List<List<Integer>> written = new ArrayList<>();
+  private final List<Integer> deadLetters = new ArrayList<>();
+
+  @Test
+  public void testSuccess() {
+    RetryingBatchConsumer<Integer> consumer = RetryingBatchConsumer.retrying(3, 1, 10, TimeUnit.MILLISECONDS,
+        written::add, (t, e) -> deadLetters.add(t));
+    consumer.accept(ImmutableList.of(1, 2, 3));
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2, 3)), written);
+    assertTrue(deadLetters.isEmpty());
+  }
+
+  @Test
+  public void testTransientFailureRetried() {
+    AtomicInteger attempts = new AtomicInteger();
+    RetryingBatchConsumer<Integer> consumer = RetryingBatchConsumer.retrying(3, 1, 10, TimeUnit.MILLISECONDS,
+        batch -> {
+          if (attempts.incrementAndGet() < 3) {
+            throw new IOException("Transient");
+          }
+          written.add(batch);
+        }, (t, e) -> deadLetters.add(t));
+    consumer.accept(ImmutableList.of(1, 2, 3));
+    assertEquals(3, attempts.get());
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2, 3)), written);
+    assertTrue(deadLetters.isEmpty());
+  }
+
+  /**
+   * Poison records in different halves, failing with the same generic error,
+   * are still isolated.
+   */
+  @Test
+  public void testPoisonRecordsIsolated() {
+    RetryingBatchConsumer<Integer> consumer = RetryingBatchConsumer.retrying(2, 0, 0, TimeUnit.MILLISECONDS,
+        batch -> {
+          for (Integer poison : ImmutableList.of(3, 6)) {
+            if (batch.contains(poison)) {
+              throw new IOException("Constraint violation");
+            }
+          }
+          written.add(ImmutableList.copyOf(batch));
+        }, (t, e) -> deadLetters.add(t));
+    consumer.accept(ImmutableList.of(1, 2, 3, 4, 5, 6, 7, 8));
+    assertEquals(ImmutableList.of(3, 6), deadLetters);
+    assertEquals(ImmutableList.of(1, 2, 4, 5, 7, 8),
+        written.stream().flatMap(List::stream).sorted().collect(ImmutableList.toImmutableList()));
+  }
+
+  /**
+   * Given a way to recognise it, a total outage should not be mistaken for
+   * every record being bad. Only the whole batch gets backoff, and bisection
+   * stops as soon as both halves fail with a common cause.
+   */
+  @Test
+  public void testOutageNotBisected() {
+    AtomicInteger attempts = new AtomicInteger();
+    RetryingBatchConsumer<Integer> consumer = RetryingBatchConsumer.retrying(3, 1, 1, TimeUnit.MILLISECONDS,
+        batch -> {
+          attempts.incrementAndGet();
+          throw new IOException("Down");
+        }, (t, e) -> deadLetters.add(t), (a, b) -> "Down".equals(a.getMessage()));
+    try {
+      consumer.accept(IntStream.range(0, 1000).boxed().collect(Collectors.toList()));
+      fail("No exception");
+    } catch (RuntimeException e) {
+      assertEquals(IOException.class, e.getCause().getClass());
+    }
+    assertEquals(5, attempts.get());
+    assertTrue(deadLetters.isEmpty());
+  }
+
+  @Test
+  public void testErrorsNotRetried() {
+    AtomicInteger attempts = new AtomicInteger();
+    RetryingBatchConsumer<Integer> consumer = RetryingBatchConsumer.retrying(3, 0, 0, TimeUnit.MILLISECONDS,
+        batch -> {
+          attempts.incrementAndGet();
+          throw new OutOfMemoryError();
+        }, (t, e) -> deadLetters.add(t));
+    try {
+      consumer.accept(ImmutableList.of(1, 2));
+      fail("No exception");
+    } catch (OutOfMemoryError e) {
+      assertEquals(1, attempts.get());
+    }
+  }
+
+  @Test
+  public void testInterruptNotRetried() {
+    AtomicInteger attempts = new AtomicInteger();
+    RetryingBatchConsumer<Integer> consumer = RetryingBatchConsumer.retrying(3, 0, 0, TimeUnit.MILLISECONDS,
+        batch -> {
+          attempts.incrementAndGet();
+          throw new InterruptedException();
+        }, (t, e) -> deadLetters.add(t));
+    try {
+      consumer.accept(ImmutableList.of(1, 2));
+      fail("No exception");
+    } catch (RuntimeException e) {
+      assertEquals(InterruptedException.class, e.getCause().getClass());
+      assertTrue(Thread.interrupted());
+      assertEquals(1, attempts.get());
+    }
+  }
+}
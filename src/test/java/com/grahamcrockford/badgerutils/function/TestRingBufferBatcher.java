@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.grahamcrockford.badgerutils.function.RingBufferBatcher.WaitStrategy;
+
+/**
+ * Tests for {@link RingBufferBatcher}.
+ */
+public class TestRingBufferBatcher {
+
+  private static final int THREADS = 8;
+  private static final int ITEMS_PER_THREAD = 10_007;
+  private static final int BATCH_SIZE = 100;
+
+  private final Queue<List<Integer>> batches = new ConcurrentLinkedQueue<>();
+  private final Consumer<Iterable<Integer>> delegate = b -> batches.add(ImmutableList.copyOf(b));
+
+  @Test
+  public void testNoData() {
+    try (RingBufferBatcher<Integer> batcher = RingBufferBatcher.batch(16, 4, delegate)) {
+    }
+    assertTrue(batches.isEmpty());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testAcceptAfterClose() {
+    RingBufferBatcher<Integer> batcher = RingBufferBatcher.batch(16, 4, delegate);
+    batcher.close();
+    batcher.accept(1);
+  }
+
+  @Test
+  public void testDeliversWithoutFilling() throws InterruptedException {
+    CountDownLatch delivered = new CountDownLatch(1);
+    try (RingBufferBatcher<Integer> batcher = RingBufferBatcher.batch(16, 1000, b -> {
+      delegate.accept(b);
+      delivered.countDown();
+    })) {
+      batcher.accept(1);
+      assertTrue(delivered.await(5, TimeUnit.SECONDS));
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of(1)), ImmutableList.copyOf(batches));
+  }
+
+  @Test
+  public void testBatchesGrowUnderLoad() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    try (RingBufferBatcher<Integer> batcher = RingBufferBatcher.batch(64, 10, b -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      delegate.accept(b);
+    })) {
+      for (int i = 0; i < 40; i++) {
+        batcher.accept(i);
+      }
+      release.countDown();
+    }
+    List<List<Integer>> result = ImmutableList.copyOf(batches);
+    assertTrue(result.size() <= 5);
+    for (List<Integer> batch : result.subList(1, result.size())) {
+      assertTrue(batch.size() == 10 || batch == result.get(result.size() - 1));
+    }
+  }
+
+  @Test
+  public void testFailuresRethrownOnClose() {
+    RingBufferBatcher<Integer> batcher = RingBufferBatcher.batch(16, 1, b -> {
+      throw new IllegalArgumentException("Boom " + b.iterator().next());
+    });
+    batcher.accept(1);
+    batcher.accept(2);
+    try {
+      batcher.close();
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("Boom 1", e.getMessage());
+      assertEquals(1, e.getSuppressed().length);
+    }
+  }
+
+  @Test
+  public void testManyThreadsBusySpin() throws InterruptedException {
+    testManyThreads(WaitStrategy.BUSY_SPIN);
+  }
+
+  @Test
+  public void testManyThreadsYield() throws InterruptedException {
+    testManyThreads(WaitStrategy.YIELD);
+  }
+
+  @Test
+  public void testManyThreadsPark() throws InterruptedException {
+    testManyThreads(WaitStrategy.PARK);
+  }
+
+  /**
+   * Hammers a deliberately small buffer from many threads and makes sure
+   * that every item arrives exactly once, in order per producer.
+   */
+  private void testManyThreads(WaitStrategy waitStrategy) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    CountDownLatch start = new CountDownLatch(1);
+    try (RingBufferBatcher<Integer> batcher = RingBufferBatcher.batch(64, BATCH_SIZE, waitStrategy, delegate)) {
+      for (int t = 0; t < THREADS; t++) {
+        int offset = t * ITEMS_PER_THREAD;
+        executor.execute(() -> {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          for (int i = 0; i < ITEMS_PER_THREAD; i++) {
+            batcher.accept(offset + i);
+          }
+        });
+      }
+      start.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    }
+
+    int[] last = new int[THREADS];
+    Arrays.fill(last, -1);
+    int count = 0;
+    for (List<Integer> batch : batches) {
+      assertTrue(batch.size() <= BATCH_SIZE);
+      for (Integer i : batch) {
+        int thread = i / ITEMS_PER_THREAD;
+        assertTrue("Out of order " + i, i % ITEMS_PER_THREAD == last[thread] + 1);
+        last[thread]++;
+        count++;
+      }
+    }
+    List<Integer> expected = new ArrayList<>();
+    List<Integer> actual = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      expected.add(ITEMS_PER_THREAD - 1);
+      actual.add(last[t]);
+    }
+    assertEquals(expected, actual);
+    assertEquals(THREADS * ITEMS_PER_THREAD, count);
+  }
+}
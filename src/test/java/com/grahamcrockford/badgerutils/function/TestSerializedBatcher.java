@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link SerializedBatcher}.
+ */
+public class TestSerializedBatcher {
+
+  private final Codec<String> codec = Codec.utf8();
+  private final List<List<String>> batches = new ArrayList<>();
+  private final List<Integer> counts = new ArrayList<>();
+
+  private void decode(ByteBuffer batch, int count) {
+    List<String> items = new ArrayList<>();
+    SerializedBatcher.decode(batch, codec, items::add);
+    batches.add(items);
+    counts.add(count);
+  }
+
+  @Test
+  public void testNoData() {
+    try (SerializedBatcher<String> batcher = SerializedBatcher.serialize(64, codec, this::decode)) {
+    }
+    assertTrue(batches.isEmpty());
+  }
+
+  @Test
+  public void testAutoClose() {
+    AtomicBoolean closed = new AtomicBoolean();
+    try (SerializedBatcher<String> batcher = SerializedBatcher.serialize(64, codec, new AutoCloseableConsumer() {
+      @Override
+      public void accept(ByteBuffer batch, int count) {
+      }
+      @Override
+      public void close() {
+        closed.set(true);
+      }
+    })) {
+    }
+    assertTrue(closed.get());
+  }
+
+  @Test
+  public void testFlushOnBytes() {
+    // Each item is 4 bytes of length plus 2 bytes of data
+    try (SerializedBatcher<String> batcher = SerializedBatcher.serialize(20, codec, this::decode)) {
+      ImmutableList.of("aa", "bb", "cc", "dd", "ee").forEach(batcher);
+      assertEquals(ImmutableList.of(ImmutableList.of("aa", "bb", "cc")), batches);
+      assertEquals(12, batcher.bufferedBytes());
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of("aa", "bb", "cc"), ImmutableList.of("dd", "ee")), batches);
+    assertEquals(ImmutableList.of(3, 2), counts);
+  }
+
+  @Test
+  public void testOversizedItem() {
+    String big = Strings.repeat("x", 100);
+    try (SerializedBatcher<String> batcher = SerializedBatcher.serialize(20, codec, this::decode)) {
+      ImmutableList.of("aa", big, "bb").forEach(batcher);
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of("aa"), ImmutableList.of(big), ImmutableList.of("bb")), batches);
+  }
+
+  @Test
+  public void testEmptyItem() {
+    try (SerializedBatcher<String> batcher = SerializedBatcher.serialize(20, codec, this::decode)) {
+      ImmutableList.of("", "a", "").forEach(batcher);
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of("", "a", "")), batches);
+  }
+
+  @Test(expected = ReadOnlyBufferException.class)
+  public void testReadOnly() {
+    try (SerializedBatcher<String> batcher = SerializedBatcher.serialize(20, codec, (b, c) -> b.put((byte) 0))) {
+      batcher.accept("a");
+    }
+  }
+
+  @Test
+  public void testCompressed() {
+    Compression compression = Compression.deflate(Deflater.BEST_SPEED);
+    Compression decompression = Compression.deflate(Deflater.BEST_SPEED);
+    List<Integer> sizes = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    try (SerializedBatcher<String> batcher = SerializedBatcher.serialize(1000, codec, compression, (b, c) -> {
+      sizes.add(b.remaining());
+      decode(decompression.decompress(b), c);
+    })) {
+      for (int i = 0; i < 250; i++) {
+        String item = "item-" + (i % 10);
+        expected.add(item);
+        batcher.accept(item);
+      }
+    }
+    List<String> actual = new ArrayList<>();
+    batches.forEach(actual::addAll);
+    assertEquals(expected, actual);
+    assertTrue(batches.size() > 1);
+    for (int size : sizes) {
+      assertTrue("Poorly compressed: " + size, size < 200);
+    }
+  }
+
+  @Test
+  public void testCompressionClosed() {
+    AtomicBoolean closed = new AtomicBoolean();
+    Compression deflate = Compression.deflate(Deflater.BEST_SPEED);
+    Compression compression = new Compression() {
+      @Override
+      public ByteBuffer compress(ByteBuffer uncompressed) {
+        return deflate.compress(uncompressed);
+      }
+
+      @Override
+      public ByteBuffer decompress(ByteBuffer compressed) {
+        return deflate.decompress(compressed);
+      }
+
+      @Override
+      public void close() {
+        deflate.close();
+        closed.set(true);
+      }
+    };
+    try (SerializedBatcher<String> batcher = SerializedBatcher.serialize(1000, codec, compression, (b, c) -> {})) {
+      batcher.accept("a");
+    }
+    assertTrue(closed.get());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCorrupt() {
+    ByteBuffer corrupt = ByteBuffer.allocate(8);
+    corrupt.putInt(0, 100);
+    SerializedBatcher.decode(corrupt, codec, s -> {});
+  }
+
+  private interface AutoCloseableConsumer extends SerializedBatcher.BatchConsumer, AutoCloseable {
+    @Override
+    void close();
+  }
+}
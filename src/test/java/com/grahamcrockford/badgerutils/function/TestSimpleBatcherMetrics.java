@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.grahamcrockford.badgerutils.function.BatcherMetrics.FlushCause;
+
+/**
+ * Tests for {@link SimpleBatcherMetrics}, as reported to by the batchers.
+ */
+public class TestSimpleBatcherMetrics {
+
+  private final SimpleBatcherMetrics metrics = new SimpleBatcherMetrics();
+
+  @Test
+  public void testBatcher() {
+    try (Batcher<Integer> batcher = Batcher.batch(10, metrics, b -> sleep())) {
+      IntStream.range(0, 25).boxed().forEach(batcher);
+    }
+    assertEquals(25, metrics.itemsAccepted());
+    assertEquals(3, metrics.batchesFlushed());
+    assertEquals(2, metrics.batchesFlushed(FlushCause.SIZE));
+    assertEquals(1, metrics.batchesFlushed(FlushCause.CLOSE));
+    assertEquals(0, metrics.batchesFlushed(FlushCause.LINGER));
+    assertEquals(2.5 / 3, metrics.meanFillRatio(), 0.0001);
+    assertEquals(10, metrics.batchSizes().max());
+    assertTrue(metrics.delegateNanos().percentile(50) >= 1_000_000);
+  }
+
+  @Test
+  public void testConcurrentBatcher() {
+    try (ConcurrentBatcher<Integer> batcher = ConcurrentBatcher.batch(10, metrics, b -> { })) {
+      IntStream.range(0, 25).boxed().forEach(batcher);
+    }
+    assertEquals(25, metrics.itemsAccepted());
+    assertEquals(2, metrics.batchesFlushed(FlushCause.SIZE));
+    assertEquals(1, metrics.batchesFlushed(FlushCause.CLOSE));
+  }
+
+  private void sleep() {
+    try {
+      Thread.sleep(1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 Graham Crockford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grahamcrockford.badgerutils.function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link SpillingBatchConsumer}.
+ */
+public class TestSpillingBatchConsumer {
+
+  private Path directory;
+  private final Queue<List<String>> delivered = new ConcurrentLinkedQueue<>();
+
+  @Before
+  public void before() throws IOException {
+    directory = Files.createTempDirectory("spill");
+  }
+
+  @After
+  public void after() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals("Spill file not deleted", 0, files.count());
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void testSpillsAndDrainsInOrder() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    try (SpillingBatchConsumer<String> consumer = SpillingBatchConsumer.spilling(2, directory, Codec.utf8(), b -> {
+      await(release);
+      delivered.add(ImmutableList.copyOf(b));
+    })) {
+      for (int i = 0; i < 100; i++) {
+        consumer.accept(ImmutableList.of("a" + i, "b" + i, ""));
+      }
+      assertTrue(consumer.spilledBytes() > 0);
+      assertTrue(consumer.pendingInMemory() <= 2);
+      release.countDown();
+    }
+    assertEquals(IntStream.range(0, 100).mapToObj(i -> ImmutableList.of("a" + i, "b" + i, "")).collect(Collectors.toList()),
+        ImmutableList.copyOf(delivered));
+  }
+
+  @Test
+  public void testLargeRecordsAndReuse() throws InterruptedException {
+    String big = Strings.repeat("x", 20 * 1024 * 1024);
+    CountDownLatch release = new CountDownLatch(1);
+    try (SpillingBatchConsumer<String> consumer = SpillingBatchConsumer.spilling(1, directory, Codec.utf8(), b -> {
+      await(release);
+      delivered.add(ImmutableList.copyOf(b));
+    })) {
+      consumer.accept(ImmutableList.of("1"));
+      consumer.accept(ImmutableList.of("2"));
+      consumer.accept(ImmutableList.of(big));
+      consumer.accept(ImmutableList.of("3"));
+      release.countDown();
+      while (delivered.size() < 4) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, consumer.spilledBytes());
+      consumer.accept(ImmutableList.of("4"));
+    }
+    assertEquals(ImmutableList.of("1", "2", big, "3", "4"),
+        delivered.stream().flatMap(List::stream).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testFailuresSurfacedOnClose() {
+    IllegalStateException failure = new IllegalStateException();
+    SpillingBatchConsumer<String> consumer = SpillingBatchConsumer.spilling(1, directory, Codec.utf8(), b -> {
+      throw failure;
+    });
+    consumer.accept(ImmutableList.of("1"));
+    try {
+      consumer.close();
+      fail("No exception");
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+  }
+
+  /**
+   * An item which can't be decoded is dropped, but the rest of its batch and
+   * the rest of the spill are still delivered.
+   */
+  @Test
+  public void testUndecodableItemSkipped() {
+    Codec<String> utf8 = Codec.utf8();
+    Codec<String> codec = new Codec<String>() {
+      @Override
+      public byte[] encode(String value) {
+        return utf8.encode(value);
+      }
+
+      @Override
+      public String decode(ByteBuffer bytes) {
+        String value = utf8.decode(bytes);
+        if (value.equals("bad")) {
+          throw new IllegalArgumentException(value);
+        }
+        return value;
+      }
+    };
+    CountDownLatch release = new CountDownLatch(1);
+    SpillingBatchConsumer<String> consumer = SpillingBatchConsumer.spilling(1, directory, codec, b -> {
+      await(release);
+      delivered.add(ImmutableList.copyOf(b));
+    });
+    consumer.accept(ImmutableList.of("1"));
+    consumer.accept(ImmutableList.of("2"));
+    consumer.accept(ImmutableList.of("3", "bad", "4"));
+    consumer.accept(ImmutableList.of("5"));
+    release.countDown();
+    try {
+      consumer.close();
+      fail("No exception");
+    } catch (IllegalArgumentException e) {
+      assertEquals("bad", e.getMessage());
+    }
+    assertEquals(ImmutableList.of(ImmutableList.of("1"), ImmutableList.of("2"), ImmutableList.of("3", "4"),
+        ImmutableList.of("5")), ImmutableList.copyOf(delivered));
+  }
+
+  private void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
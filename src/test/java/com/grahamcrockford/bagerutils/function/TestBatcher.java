@@ -3,10 +3,13 @@ package com.grahamcrockford.bagerutils.function;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import org.junit.Assert;
@@ -17,6 +20,8 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 import com.grahamcrockford.badgerutils.function.Batcher;
 
 /**
@@ -126,6 +131,68 @@ public class TestBatcher {
     verify(delegate).accept(ImmutableList.of(11, 12, 13, 14));
   }
   
+  @Test
+  public void testWeightFlush() {
+    
+    // Weigh each item as its own value
+    try (Batcher<Integer> batch = Batcher.batchByWeight(10, Integer::longValue, delegate)) {
+      ImmutableList.of(1, 2, 3, 4, 5, 6, 3).forEach(batch);
+      
+      // 1+2+3+4 = 10 fits exactly. 5+6 would not fit.
+      verify(delegate).accept(ImmutableList.of(1, 2, 3, 4));
+      verify(delegate).accept(ImmutableList.of(5));
+    }
+    
+    verify(delegate).accept(ImmutableList.of(6, 3));
+  }
+  
+  @Test
+  public void testOverweightItemFlushedAlone() {
+    try (Batcher<Integer> batch = Batcher.batchByWeight(10, Integer::longValue, delegate)) {
+      ImmutableList.of(1, 50, 2).forEach(batch);
+      verify(delegate).accept(ImmutableList.of(1));
+      verify(delegate).accept(ImmutableList.of(50));
+    }
+    verify(delegate).accept(ImmutableList.of(2));
+  }
+  
+  @Test
+  public void testWeightAndCountFlush() {
+    try (Batcher<Integer> batch = Batcher.batch(3, 50, Integer::longValue, delegate)) {
+      ImmutableList.of(1, 1, 1, 1, 99).forEach(batch);
+      verify(delegate).accept(ImmutableList.of(1, 1, 1));
+      verify(delegate).accept(ImmutableList.of(1));
+    }
+    verify(delegate).accept(ImmutableList.of(99));
+  }
+  
+  @Test
+  public void testRecycling() {
+    List<List<Integer>> copies = new ArrayList<>();
+    Set<Iterable<Integer>> instances = Sets.newIdentityHashSet();
+    try (Batcher<Integer> batch = Batcher.recycling(2, b -> {
+      instances.add(b);
+      copies.add(ImmutableList.copyOf(b));
+    })) {
+      ImmutableList.of(1, 2, 3, 4, 5).forEach(batch);
+    }
+    Assert.assertEquals(ImmutableList.of(ImmutableList.of(1, 2), ImmutableList.of(3, 4), ImmutableList.of(5)), copies);
+    Assert.assertEquals(1, instances.size());
+  }
+  
+  @Test
+  public void testAdaptive() {
+    List<Integer> sizes = new ArrayList<>();
+    try (Batcher<Integer> batch = Batcher.adaptive(2, 6, 1, TimeUnit.MINUTES, b -> sizes.add(Iterables.size(b)))) {
+      Assert.assertEquals(2, batch.currentBatchSize());
+      for (int i = 0; i < 20; i++) {
+        batch.accept(i);
+      }
+      Assert.assertEquals(6, batch.currentBatchSize());
+    }
+    Assert.assertEquals(ImmutableList.of(2, 3, 4, 5, 6), sizes);
+  }
+  
   
   private interface AutoCloseableConsumer extends Consumer<Iterable<Integer>>, AutoCloseable {
     